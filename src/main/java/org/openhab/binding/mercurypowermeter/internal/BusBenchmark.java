@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.mercurypowermeter.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.mercurypowermeter.internal.dto.M200Protocol;
+import org.openhab.binding.mercurypowermeter.internal.dto.M200Protocol.Packet;
+
+/**
+ * The {@link BusBenchmark} runs a controlled load test against real meters: repeated
+ * READ_POWER/READ_UIP exchanges with different inter-frame delays. It measures achieved
+ * throughput, reply latencies and error rates, and finds the minimum delay the meters
+ * can reliably work with.
+ *
+ * The benchmark only needs something, what can exchange packets, so it can be run
+ * against a fake meter as well.
+ *
+ * @author Pavel Fedin - Initial contribution
+ */
+@NonNullByDefault
+public class BusBenchmark {
+    private static final byte[] COMMANDS = { M200Protocol.Command.READ_POWER, M200Protocol.Command.READ_UIP };
+
+    @FunctionalInterface
+    public interface Exchanger {
+        /**
+         * Send a packet and receive a reply, without any delay afterwards
+         *
+         * @return reply or null if the reply is invalid
+         */
+        @Nullable
+        Packet exchange(Packet pkt) throws IOException, BridgeOfflineException;
+    }
+
+    public static class Result {
+        public final int delay; // Milliseconds
+        public final int exchanges;
+        public final int errors;
+        public final double rate; // Exchanges per second, including failed ones
+        public final long[] latencies; // Sorted, nanoseconds, successful exchanges only
+
+        Result(int delay, int exchanges, int errors, double rate, long[] latencies) {
+            this.delay = delay;
+            this.exchanges = exchanges;
+            this.errors = errors;
+            this.rate = rate;
+            this.latencies = latencies;
+        }
+
+        /**
+         * @param p percentile, 0 - 100
+         * @return latency in nanoseconds, or 0 if there were no successful exchanges
+         */
+        public long getPercentile(int p) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(p / 100.0 * latencies.length) - 1;
+            return latencies[Math.max(index, 0)];
+        }
+    }
+
+    private final Exchanger bus;
+    private final List<Integer> addresses;
+    private final int count;
+
+    /**
+     * @param bus packet exchanger to test
+     * @param addresses meter addresses to poll, in a round-robin manner
+     * @param count number of exchanges per meter per delay value
+     */
+    public BusBenchmark(Exchanger bus, List<Integer> addresses, int count) {
+        this.bus = bus;
+        this.addresses = addresses;
+        this.count = count;
+    }
+
+    /**
+     * Run the benchmark
+     *
+     * @param delays inter-frame delays to try, in milliseconds
+     * @return results, one per delay value
+     * @throws BridgeOfflineException if the bus goes offline during the test
+     * @throws InterruptedException if the test has been interrupted
+     */
+    public List<Result> run(List<Integer> delays) throws BridgeOfflineException, InterruptedException {
+        List<Result> results = new ArrayList<>();
+
+        for (int delay : delays) {
+            results.add(run(delay));
+        }
+
+        return results;
+    }
+
+    private Result run(int delay) throws BridgeOfflineException, InterruptedException {
+        int total = count * addresses.size();
+        long[] latencies = new long[total];
+        int ok = 0;
+        int errors = 0;
+        long start = System.nanoTime();
+
+        for (int i = 0; i < count; i++) {
+            for (int address : addresses) {
+                Packet pkt = new Packet(address, COMMANDS[i % COMMANDS.length]);
+                long t = System.nanoTime();
+                Packet reply;
+
+                try {
+                    reply = bus.exchange(pkt);
+                } catch (IOException e) {
+                    reply = null;
+                }
+
+                if (reply != null) {
+                    latencies[ok++] = System.nanoTime() - t;
+                } else {
+                    errors++;
+                }
+
+                TimeUnit.MILLISECONDS.sleep(delay);
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long[] sorted = Arrays.copyOf(latencies, ok);
+
+        Arrays.sort(sorted);
+        return new Result(delay, total, errors, seconds > 0 ? total / seconds : 0, sorted);
+    }
+
+    /**
+     * @return the smallest delay, such that neither it nor any larger one produced errors; -1 if none
+     */
+    public static int getMinSafeDelay(List<Result> results) {
+        List<Result> sorted = new ArrayList<>(results);
+        int safe = -1;
+
+        sorted.sort((a, b) -> Integer.compare(b.delay, a.delay));
+        for (Result r : sorted) {
+            if (r.errors != 0) {
+                break;
+            }
+            safe = r.delay;
+        }
+
+        return safe;
+    }
+}
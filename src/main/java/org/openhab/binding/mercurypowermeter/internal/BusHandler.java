@@ -15,13 +15,20 @@ package org.openhab.binding.mercurypowermeter.internal;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
-
-import javax.xml.bind.DatatypeConverter;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.mercurypowermeter.internal.dto.FrameParser;
 import org.openhab.binding.mercurypowermeter.internal.dto.M200Protocol;
 import org.openhab.binding.mercurypowermeter.internal.dto.M200Protocol.Packet;
 import org.openhab.core.thing.Bridge;
@@ -36,16 +43,54 @@ import org.slf4j.LoggerFactory;
  */
 @NonNullByDefault
 public abstract class BusHandler extends BaseBridgeHandler {
+    private static final int MAX_GARBAGE_FACTOR = 4;
+    // Reply timeout for low priority exchanges, milliseconds
+    private static final int LOW_PRIORITY_TIMEOUT = 300;
+    // How often to check for reply data while waiting with our own timeout, milliseconds
+    private static final int DATA_POLL_INTERVAL = 5;
+
     private final Logger logger = LoggerFactory.getLogger(BusHandler.class);
 
     protected @Nullable InputStream dataIn;
     protected @Nullable OutputStream dataOut;
+    protected @Nullable FrameCapture capture;
+    private volatile long resyncCount;
+    protected volatile FrameTrace trace = new FrameTrace(FrameTrace.DEFAULT_SIZE);
+
+    // Bus arbitration. Requests are served in priority order, FIFO within the same priority
+    private final Object busLock = new Object();
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>(
+            Comparator.comparing((Waiter w) -> w.priority).thenComparingLong(w -> w.sequence));
+    private long waiterSequence;
+    private boolean busy;
+    // Number of benchmarks, running or waiting for the bus; polling is paused while nonzero
+    private final AtomicInteger pollingPaused = new AtomicInteger();
+    private final Map<Long, CompletableFuture<@Nullable Packet>> pendingRefreshes = new HashMap<>();
+
+    public enum Priority {
+        HIGH, // On-demand requests, e.g. REFRESH command
+        NORMAL, // Background polling
+        LOW // Historical data, only when there's nothing else to do
+    }
+
+    private static class Waiter {
+        final Priority priority;
+        final long sequence;
+        // If set, the waiter isn't a blocked thread, but a job to be run by whoever frees the bus
+        final @Nullable Runnable task;
+
+        Waiter(Priority priority, long sequence, @Nullable Runnable task) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.task = task;
+        }
+    }
 
     public BusHandler(Bridge bridge) {
         super(bridge);
     }
 
-    private void safeClose(@Nullable Closeable stream) {
+    protected void safeClose(@Nullable Closeable stream) {
         if (stream != null) {
             try {
                 stream.close();
@@ -59,12 +104,194 @@ public abstract class BusHandler extends BaseBridgeHandler {
     public void dispose() {
         safeClose(dataOut);
         safeClose(dataIn);
+        safeClose(capture);
 
         dataOut = null;
         dataIn = null;
+        capture = null;
+    }
+
+    public @Nullable Packet doPacket(Packet pkt) throws IOException, BridgeOfflineException {
+        return doPacket(pkt, Priority.NORMAL);
+    }
+
+    /**
+     * Send a packet and receive a reply, waiting for the bus according to the given priority.
+     * Low priority exchanges use a short reply timeout, see {@link #getLowPriorityTimeout(byte)},
+     * so that a silent meter doesn't hold up polls, which have queued meanwhile, for long.
+     */
+    public @Nullable Packet doPacket(Packet pkt, Priority priority) throws IOException, BridgeOfflineException {
+        acquireBus(priority);
+        try {
+            return exchange(pkt, getDelay(),
+                    priority == Priority.LOW ? getLowPriorityTimeout(pkt.getCommand()) : 0);
+        } finally {
+            releaseBus();
+        }
+    }
+
+    /**
+     * Request a packet with high priority. The request goes ahead of all queued background
+     * polls, but never interrupts an exchange in progress. Duplicate requests, which are
+     * still waiting in the queue, are coalesced into one.
+     * The request doesn't occupy a thread while waiting: it's queued right away and then
+     * executed by the thread, which releases the bus, or by the caller if the bus is free.
+     *
+     * @param pkt a packet to send
+     * @return a future, which will be completed with reply, or null if the reply is invalid
+     */
+    public CompletableFuture<@Nullable Packet> refresh(Packet pkt) {
+        long key = (Integer.toUnsignedLong(pkt.getAddress()) << 8) | Byte.toUnsignedInt(pkt.getCommand());
+        CompletableFuture<@Nullable Packet> future;
+
+        synchronized (pendingRefreshes) {
+            future = pendingRefreshes.get(key);
+            if (future != null) {
+                logger.trace("Coalescing refresh of command {} for {}", Byte.toUnsignedInt(pkt.getCommand()),
+                        pkt.getAddress());
+                return future;
+            }
+
+            future = new CompletableFuture<>();
+            pendingRefreshes.put(key, future);
+        }
+
+        final CompletableFuture<@Nullable Packet> result = future;
+
+        synchronized (busLock) {
+            waiters.add(new Waiter(Priority.HIGH, waiterSequence++, () -> runRefresh(key, pkt, result)));
+        }
+        serveQueued();
+        return result;
+    }
+
+    // Called with the bus acquired
+    private void runRefresh(long key, Packet pkt, CompletableFuture<@Nullable Packet> future) {
+        // We've got the bus, from now on a new refresh needs a new exchange
+        synchronized (pendingRefreshes) {
+            pendingRefreshes.remove(key);
+        }
+
+        try {
+            future.complete(exchange(pkt, getDelay()));
+        } catch (IOException | BridgeOfflineException | RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Run a load test on the bus. Normal polling is paused while the test runs. Polls, which
+     * are already waiting for the bus, are served before the test starts, so that they don't
+     * keep their threads blocked for the whole test.
+     *
+     * @param addresses meter addresses to poll
+     * @param count number of exchanges per meter per delay value
+     * @param delays inter-frame delays to try, in milliseconds
+     */
+    public List<BusBenchmark.Result> benchmark(List<Integer> addresses, int count, List<Integer> delays)
+            throws IOException, BridgeOfflineException, InterruptedException {
+        pollingPaused.incrementAndGet();
+        try {
+            // Lowest priority lets everything, queued so far, go first
+            acquireBus(Priority.LOW);
+        } catch (IOException e) {
+            pollingPaused.decrementAndGet();
+            throw e;
+        }
+
+        try {
+            return new BusBenchmark(pkt -> exchange(pkt, 0), addresses, count).run(delays);
+        } finally {
+            pollingPaused.decrementAndGet();
+            releaseBus();
+        }
+    }
+
+    /**
+     * @return true if background polling should skip its cycles, e.g. during a benchmark
+     */
+    public boolean isPollingPaused() {
+        return pollingPaused.get() > 0;
+    }
+
+    /**
+     * @return true if no exchange is in progress and nobody is waiting for the bus
+     */
+    public boolean isIdle() {
+        synchronized (busLock) {
+            return !busy && waiters.isEmpty();
+        }
+    }
+
+    protected void acquireBus(Priority priority) throws IOException {
+        synchronized (busLock) {
+            Waiter me = new Waiter(priority, waiterSequence++, null);
+
+            waiters.add(me);
+            try {
+                while (busy || waiters.peek() != me) {
+                    busLock.wait();
+                }
+            } catch (InterruptedException e) {
+                waiters.remove(me);
+                Thread.currentThread().interrupt();
+            }
+
+            if (waiters.peek() == me) {
+                waiters.poll();
+                busy = true;
+                return;
+            }
+        }
+
+        // Interrupted; whoever is next in the queue may need a kick now
+        serveQueued();
+        throw new InterruptedIOException("Interrupted while waiting for the bus");
+    }
+
+    protected void releaseBus() {
+        synchronized (busLock) {
+            busy = false;
+        }
+        serveQueued();
+    }
+
+    // Run queued tasks, which are ahead of any blocked thread, then wake up the threads.
+    // Must be called without busLock held.
+    private void serveQueued() {
+        while (true) {
+            Waiter next;
+            Runnable task;
+
+            synchronized (busLock) {
+                next = waiters.peek();
+                task = next != null ? next.task : null;
+                if (busy || task == null) {
+                    busLock.notifyAll();
+                    return;
+                }
+                waiters.poll();
+                busy = true;
+            }
+
+            try {
+                task.run();
+            } finally {
+                synchronized (busLock) {
+                    busy = false;
+                }
+            }
+        }
     }
 
-    public synchronized @Nullable Packet doPacket(Packet pkt) throws IOException, BridgeOfflineException {
+    private @Nullable Packet exchange(Packet pkt, int delay) throws IOException, BridgeOfflineException {
+        return exchange(pkt, delay, 0);
+    }
+
+    /**
+     * @param timeout reply timeout in milliseconds, 0 to rely on the port's own read timeout
+     */
+    private @Nullable Packet exchange(Packet pkt, int delay, int timeout) throws IOException, BridgeOfflineException {
         OutputStream dataOut = this.dataOut;
         InputStream dataIn = this.dataIn;
 
@@ -72,79 +299,168 @@ public abstract class BusHandler extends BaseBridgeHandler {
             throw new BridgeOfflineException();
         }
 
-        int readLength;
+        int replyLength = M200Protocol.getReplyLength(pkt.getCommand());
 
-        // Reply length depends on the command
-        switch (pkt.getCommand()) {
-            case M200Protocol.Command.READ_TIME:
-                readLength = 7;
-                break;
-            case M200Protocol.Command.READ_POWER:
-                readLength = 4;
-                break;
-            case M200Protocol.Command.READ_COUNTERS:
-                readLength = 16;
-                break;
-            case M200Protocol.Command.READ_BATTERY:
-                readLength = 2;
-                break;
-            case M200Protocol.Command.READ_TARIFFS:
-                readLength = 1;
-                break;
-            case M200Protocol.Command.READ_TARIFF:
-                readLength = 1;
-                break;
-            case M200Protocol.Command.READ_UIP:
-                readLength = 7;
-                break;
-            case M200Protocol.Command.READ_LINE_PARAMS:
-                readLength = 10;
-                break;
-            default:
-                throw new IllegalStateException("Unknown command code");
+        if (logger.isTraceEnabled()) {
+            logger.trace("Sending command {}; reply data length = {}", Byte.toUnsignedInt(pkt.getCommand()),
+                    replyLength);
         }
 
-        logger.trace("Sending command {}; reply data length = {}", Byte.toUnsignedInt(pkt.getCommand()), readLength);
-
-        readLength += Packet.MIN_LENGTH;
+        // Anything received before we send the request is a leftover from a previous
+        // exchange. Throw it away now, otherwise it would get in the way of our reply.
+        int stale = drainInput(dataIn);
+        long startTime = System.nanoTime();
+        FrameTrace.Status status = FrameTrace.Status.ERROR;
 
         dataOut.write(pkt.getBuffer());
+        capture(FrameCapture.REQUEST, pkt.getAddress(), pkt.getBuffer(), pkt.getBuffer().length);
 
+        FrameParser parser = new FrameParser(pkt.getAddress(), pkt.getCommand(), replyLength);
+        // Limit the amount of garbage we are willing to sift through
+        byte[] readBuffer = new byte[(replyLength + Packet.MIN_LENGTH) * MAX_GARBAGE_FACTOR];
         int readOffset = 0;
-        byte[] readBuffer = new byte[readLength];
+        Packet reply = null;
+
+        try {
+            while (reply == null) {
+                int readLength = Math.min(parser.getMissingLength(), readBuffer.length - readOffset);
+
+                if (readLength == 0) {
+                    throw new IOException("No valid reply found in received data");
+                }
 
-        while (readLength > 0) {
-            int n = dataIn.read(readBuffer, readOffset, readLength);
+                if (timeout > 0) {
+                    // Read only what has arrived, so that the port doesn't block for its own timeout
+                    readLength = Math.min(readLength,
+                            waitForData(dataIn, startTime + TimeUnit.MILLISECONDS.toNanos(timeout)));
+                }
 
-            if (n < 0) {
-                throw new IOException("EOF from serial port");
-            } else if (n == 0) {
-                logger.trace("Reply timeout");
-                throw new IOException("Serial read timeout");
+                int n = readLength > 0 ? dataIn.read(readBuffer, readOffset, readLength) : 0;
+
+                if (n < 0) {
+                    throw new IOException("EOF from serial port");
+                } else if (n == 0) {
+                    logger.trace("Reply timeout");
+                    status = FrameTrace.Status.TIMEOUT;
+                    throw new IOException("Serial read timeout");
+                }
+
+                for (int i = 0; i < n && reply == null; i++) {
+                    reply = parser.feed(readBuffer[readOffset + i]);
+                }
+
+                readOffset += n;
+
+                // A complete frame with a bad CRC has arrived and nothing else follows.
+                // It's pointless to wait for a timeout, report the error right now.
+                // But if the bytes, left after resync, may start the real reply (e.g. the
+                // bad frame was our own echoed request), keep waiting for the rest of it.
+                if (reply == null && parser.getCrcErrors() > 0 && !parser.hasPartialFrame()
+                        && dataIn.available() == 0) {
+                    break;
+                }
             }
 
-            readOffset += n;
-            readLength -= n;
+            if (reply == null) {
+                status = FrameTrace.Status.INVALID;
+            } else if (stale > 0 || parser.getResyncs() > 0) {
+                status = FrameTrace.Status.RESYNC;
+            } else {
+                status = FrameTrace.Status.OK;
+            }
+        } finally {
+            // Record everything we've got, including garbage and incomplete replies;
+            // these are the most interesting ones
+            capture(FrameCapture.REPLY, pkt.getAddress(), readBuffer, readOffset);
+            trace.record(System.currentTimeMillis(), System.nanoTime() - startTime, pkt.getAddress(),
+                    pkt.getCommand(), status, readBuffer, readOffset);
         }
 
-        Packet reply = new Packet(readBuffer);
+        if (stale > 0 || parser.getResyncs() > 0) {
+            resyncCount++;
+            logger.debug("Resynchronized on reply from {}: {} stale bytes, {} stray bytes dropped", pkt.getAddress(),
+                    stale, parser.getDroppedBytes());
+        }
 
         // The meter doesn't reply if a second command is sent immediately after
         // the first reply, so we need a delay
         try {
-            TimeUnit.MILLISECONDS.sleep(getDelay());
+            TimeUnit.MILLISECONDS.sleep(delay);
         } catch (InterruptedException e) {
         }
 
-        if (reply.isValid()) {
-            return reply;
-        } else {
-            logger.warn("Invalid reply received: {}", DatatypeConverter.printHexBinary(reply.getBuffer()));
-            return null;
+        if (reply == null) {
+            byte[] badFrame = parser.getBadFrame();
+            logger.warn("Invalid reply received: {}", Util.toHex(badFrame != null ? badFrame : readBuffer));
+        }
+
+        return reply;
+    }
+
+    // Returns number of bytes available, 0 if the deadline has passed
+    private int waitForData(InputStream dataIn, long deadline) throws IOException {
+        int n;
+
+        while ((n = dataIn.available()) == 0 && System.nanoTime() < deadline) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(DATA_POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for reply");
+            }
+        }
+
+        return n;
+    }
+
+    /**
+     * @return reply timeout for a low priority exchange with the given command, milliseconds
+     */
+    protected int getLowPriorityTimeout(byte command) {
+        return LOW_PRIORITY_TIMEOUT;
+    }
+
+    private int drainInput(InputStream dataIn) throws IOException {
+        int dropped = 0;
+        int n;
+
+        while ((n = dataIn.available()) > 0) {
+            n = dataIn.read(new byte[n]);
+            if (n <= 0) {
+                break;
+            }
+            dropped += n;
+        }
+
+        return dropped;
+    }
+
+    public FrameTrace getTrace() {
+        return trace;
+    }
+
+    /**
+     * @return number of exchanges, during which stale or stray data had to be dropped
+     */
+    public long getResyncCount() {
+        return resyncCount;
+    }
+
+    private void capture(byte direction, int address, byte[] data, int length) {
+        FrameCapture capture = this.capture;
+
+        if (capture != null) {
+            try {
+                capture.write(direction, address, data, length);
+            } catch (IOException e) {
+                logger.warn("Error writing frame capture, capture stopped: {}", e.getMessage());
+                safeClose(capture);
+                this.capture = null;
+            }
         }
     }
 
-    protected int getDelay() {
+    public int getDelay() {
         // According to the documentation, end of frame is considered when there's no
         // transmission within time, enough to transfer 5 - 6 bytes. Here we don't know
         // our baud rate, so using the largest delay, calculated for 600 bps
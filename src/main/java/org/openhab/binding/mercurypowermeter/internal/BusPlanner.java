@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.mercurypowermeter.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.openhab.binding.mercurypowermeter.internal.dto.M200Protocol;
+import org.openhab.binding.mercurypowermeter.internal.dto.M200Protocol.Packet;
+
+/**
+ * The {@link BusPlanner} estimates bus time, required to poll all the meters with their
+ * configured intervals. If the bus can't keep up, low priority (slowly changing) readings
+ * get polled less often, so that live values keep their requested rate.
+ *
+ * @author Pavel Fedin - Initial contribution
+ */
+@NonNullByDefault
+public class BusPlanner {
+    // Leave some headroom for on-demand refreshes
+    private static final double TARGET_LOAD = 0.9;
+    private static final int MAX_DIVIDER = 60;
+    // 8 data bits + start bit + stop bit
+    private static final int BITS_PER_BYTE = 10;
+
+    private static class Demand {
+        final int pollInterval;
+        final List<Byte> commands;
+
+        Demand(int pollInterval, Collection<Byte> commands) {
+            this.pollInterval = Math.max(pollInterval, 1);
+            this.commands = new ArrayList<>(commands);
+        }
+    }
+
+    private final Map<String, Demand> demands = new HashMap<>();
+    private int baud = 9600;
+    private int delay;
+    private double demandLoad;
+    private double load;
+    private int divider = 1;
+
+    public static boolean isLowPriority(byte command) {
+        // Instant values are what users usually watch; everything else changes slowly
+        return command != M200Protocol.Command.READ_UIP && command != M200Protocol.Command.READ_POWER;
+    }
+
+    public synchronized void setTiming(int baud, int delay) {
+        this.baud = baud;
+        this.delay = delay;
+        recalculate();
+    }
+
+    public synchronized void setDemand(String meterId, int pollInterval, Collection<Byte> commands) {
+        demands.put(meterId, new Demand(pollInterval, commands));
+        recalculate();
+    }
+
+    public synchronized void removeDemand(String meterId) {
+        demands.remove(meterId);
+        recalculate();
+    }
+
+    /**
+     * @return time in milliseconds, taken by a single exchange on the bus
+     */
+    public synchronized double getExchangeTime(byte command) {
+        int bytes = Packet.MIN_LENGTH * 2 + M200Protocol.getReplyLength(command);
+        return bytes * BITS_PER_BYTE * 1000.0 / baud + delay;
+    }
+
+    /**
+     * @return bus time, required by a single poll cycle of the given meter, in milliseconds
+     */
+    public synchronized double getCycleTime(String meterId) {
+        Demand d = demands.get(meterId);
+        double time = 0;
+
+        if (d != null) {
+            for (byte command : d.commands) {
+                time += getExchangeTime(command);
+            }
+        }
+        return time;
+    }
+
+    /**
+     * @return bus load, as requested by configuration; 1.0 means 100%
+     */
+    public synchronized double getDemandLoad() {
+        return demandLoad;
+    }
+
+    /**
+     * @return projected bus load after stretching low priority polls; 1.0 means 100%
+     */
+    public synchronized double getLoad() {
+        return load;
+    }
+
+    /**
+     * @return low priority readings are only polled every N-th cycle
+     */
+    public synchronized int getLowPriorityDivider() {
+        return divider;
+    }
+
+    private void recalculate() {
+        double fast = 0;
+        double slow = 0;
+
+        for (Demand d : demands.values()) {
+            for (byte command : d.commands) {
+                double share = getExchangeTime(command) / (d.pollInterval * 1000.0);
+
+                if (isLowPriority(command)) {
+                    slow += share;
+                } else {
+                    fast += share;
+                }
+            }
+        }
+
+        demandLoad = fast + slow;
+
+        if (demandLoad <= TARGET_LOAD) {
+            divider = 1;
+        } else if (fast >= TARGET_LOAD) {
+            // Stretching won't help much, but at least we do what we can
+            divider = MAX_DIVIDER;
+        } else {
+            divider = Math.min((int) Math.ceil(slow / (TARGET_LOAD - fast)), MAX_DIVIDER);
+        }
+
+        load = fast + slow / divider;
+    }
+}
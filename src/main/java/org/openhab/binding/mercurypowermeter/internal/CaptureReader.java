@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.mercurypowermeter.internal;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * The {@link CaptureReader} reads records back from a file, written by {@link FrameCapture}
+ *
+ * @author Pavel Fedin - Initial contribution
+ */
+@NonNullByDefault
+public class CaptureReader implements Closeable {
+    public static class Record {
+        public final byte direction;
+        public final long timestamp;
+        public final int address;
+        public final byte[] data;
+
+        public Record(byte direction, long timestamp, int address, byte[] data) {
+            this.direction = direction;
+            this.timestamp = timestamp;
+            this.address = address;
+            this.data = data;
+        }
+    }
+
+    private final DataInputStream in;
+    private final long startTime;
+    private final String bridgeId;
+    private @Nullable Record lookahead;
+
+    public CaptureReader(InputStream stream) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(stream));
+
+        if (in.readInt() != FrameCapture.MAGIC) {
+            throw new IOException("Not a frame capture file");
+        }
+
+        short version = in.readShort();
+        if (version != FrameCapture.VERSION) {
+            throw new IOException("Unsupported frame capture version " + version);
+        }
+
+        startTime = in.readLong();
+        bridgeId = in.readUTF();
+    }
+
+    public static CaptureReader open(String fileName) throws IOException {
+        return new CaptureReader(new FileInputStream(fileName));
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public String getBridgeId() {
+        return bridgeId;
+    }
+
+    public @Nullable Record peek() throws IOException {
+        Record r = lookahead;
+
+        if (r == null) {
+            r = readRecord();
+            lookahead = r;
+        }
+        return r;
+    }
+
+    public @Nullable Record next() throws IOException {
+        Record r = peek();
+
+        lookahead = null;
+        return r;
+    }
+
+    private @Nullable Record readRecord() throws IOException {
+        byte direction;
+
+        try {
+            direction = in.readByte();
+        } catch (EOFException e) {
+            return null;
+        }
+
+        long timestamp = in.readLong();
+        int address = in.readInt();
+        byte[] data = new byte[in.readUnsignedShort()];
+
+        in.readFully(data);
+        return new Record(direction, timestamp, address, data);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.mercurypowermeter.internal;
+
+import static org.openhab.binding.mercurypowermeter.internal.MercuryBindingConstants.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.mercurypowermeter.internal.dto.M200Protocol;
+import org.openhab.binding.mercurypowermeter.internal.dto.M200Protocol.Packet;
+import org.openhab.core.library.types.DecimalType;
+import org.openhab.core.storage.Storage;
+import org.openhab.core.thing.ChannelUID;
+import org.openhab.core.thing.ThingUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link EnergyBackfill} recovers energy counters history from meter's archive, which
+ * keeps counter values at the beginning of each of last 12 months. Each step reads at most
+ * one record, and only if the bus is idle. Archive reads are low priority exchanges with
+ * a short reply timeout, so a poll, which comes while one is in progress, is held up
+ * for no longer than a regular exchange takes.
+ * Progress is checkpointed, so the job resumes after a restart and fills in the months,
+ * which were missed while openHAB was down.
+ *
+ * Failed reads, including timeouts, are retried with an exponentially growing interval;
+ * after several consecutive failures the job stops for good.
+ *
+ * @author Pavel Fedin - Initial contribution
+ */
+@NonNullByDefault
+public class EnergyBackfill {
+    // The meter keeps one record per month, older ones get overwritten
+    private static final int ARCHIVE_MONTHS = 12;
+    // Give up if the meter doesn't seem to support archive reading or doesn't reply at all
+    private static final int MAX_FAILURES = 5;
+    // Retry interval after a failure is doubled each time. Milliseconds
+    private static final long RETRY_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private final Logger logger = LoggerFactory.getLogger(EnergyBackfill.class);
+    private final BusHandler bus;
+    private final int address;
+    private final ThingUID thingUID;
+    private final Storage<String> storage;
+    private final HistoryWriter writer;
+    private final String checkpointKey;
+    private boolean warned;
+    private int failures;
+    private long nextAttempt;
+    private volatile boolean cancelled;
+
+    public EnergyBackfill(BusHandler bus, int address, ThingUID thingUID, Storage<String> storage,
+            HistoryWriter writer) {
+        this.bus = bus;
+        this.address = address;
+        this.thingUID = thingUID;
+        this.storage = storage;
+        this.writer = writer;
+        checkpointKey = getCheckpointKey(thingUID);
+    }
+
+    public void step() {
+        if (cancelled || failures >= MAX_FAILURES || System.currentTimeMillis() < nextAttempt) {
+            return;
+        }
+
+        YearMonth current = YearMonth.now();
+        YearMonth oldest = current.minusMonths(ARCHIVE_MONTHS - 1);
+        YearMonth month = getCheckpoint();
+
+        month = month == null || month.isBefore(oldest) ? oldest : month.plusMonths(1);
+        if (month.isAfter(current)) {
+            return; // Up to date
+        }
+
+        if (!writer.isAvailable()) {
+            if (!warned) {
+                logger.warn("{}: default persistence service can't store history, energy backfill suspended",
+                        thingUID);
+                warned = true;
+            }
+            return;
+        }
+        warned = false;
+
+        if (!bus.isIdle()) {
+            return; // Try again later
+        }
+
+        // Months are numbered from 0
+        Packet pkt = new Packet(address, M200Protocol.Command.READ_MONTH_COUNTERS,
+                new byte[] { (byte) (month.getMonthValue() - 1) });
+        Packet reply;
+
+        try {
+            reply = bus.doPacket(pkt, BusHandler.Priority.LOW);
+        } catch (BridgeOfflineException e) {
+            return; // Try again later
+        } catch (InterruptedIOException e) {
+            return; // The job is being cancelled
+        } catch (IOException e) {
+            logger.debug("{}: failed to read archive for {}: {}", thingUID, month, e.getMessage());
+            fail();
+            return;
+        }
+
+        if (reply == null) {
+            fail(); // Invalid reply, already logged by the bus
+            return;
+        }
+        failures = 0;
+        nextAttempt = 0;
+
+        ZonedDateTime time = month.atDay(1).atStartOfDay(ZoneId.systemDefault());
+
+        // Same format as READ_COUNTERS reply
+        for (int i = 0; i < CH_ENERGY.length; i++) {
+            double kwt_h = Util.BCDToInt(reply.getInt(i * 4)) * 0.01;
+            writer.store(new ChannelUID(thingUID, CH_ENERGY[i]), time, new DecimalType(kwt_h));
+        }
+
+        logger.debug("{}: restored energy counters for {}", thingUID, month);
+        synchronized (this) {
+            if (!cancelled) {
+                storage.put(checkpointKey, month.toString());
+            }
+        }
+    }
+
+    /**
+     * Stop the job. Once this returns, the checkpoint isn't written anymore, even by a step,
+     * which is still running.
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+    }
+
+    private void fail() {
+        if (++failures >= MAX_FAILURES) {
+            logger.warn("{}: no valid archive replies from the meter, energy backfill stopped", thingUID);
+            return;
+        }
+
+        nextAttempt = System.currentTimeMillis() + (RETRY_INTERVAL << (failures - 1));
+    }
+
+    private @Nullable YearMonth getCheckpoint() {
+        String value = storage.get(checkpointKey);
+
+        try {
+            return value != null ? YearMonth.parse(value) : null;
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    public static String getCheckpointKey(ThingUID thingUID) {
+        return thingUID.getAsString() + ":backfill";
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.mercurypowermeter.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link FrameCapture} writes raw bus traffic into a compact binary capture file,
+ * which can later be played back using {@link ReplayTransport}.
+ *
+ * File layout (all values are big endian):
+ * - header: magic "MCAP", version (16 bits), capture start time in epoch milliseconds (64 bits),
+ * bridge UID (modified UTF-8 string)
+ * - records: direction (8 bits), nanoseconds since capture start (64 bits), meter address (32 bits),
+ * data length (16 bits), raw frame data
+ *
+ * Every capture session goes to a new file, named after the configured one with a timestamp
+ * suffix, so restarts never overwrite earlier traffic. A file is limited to {@link #MAX_SIZE}
+ * bytes, after which recording stops.
+ *
+ * @author Pavel Fedin - Initial contribution
+ */
+@NonNullByDefault
+public class FrameCapture implements Closeable {
+    public static final int MAGIC = 0x4D434150; // "MCAP"
+    public static final short VERSION = 1;
+
+    public static final byte REQUEST = 0;
+    public static final byte REPLY = 1;
+
+    public static final long MAX_SIZE = 64 * 1024 * 1024;
+
+    private static final DateTimeFormatter SESSION_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private final Logger logger = LoggerFactory.getLogger(FrameCapture.class);
+    private final DataOutputStream out;
+    private final long startTime;
+    private final long maxSize;
+    private final String fileName;
+    private boolean full;
+
+    public FrameCapture(OutputStream stream, String bridgeId) throws IOException {
+        this(stream, bridgeId, MAX_SIZE, "");
+    }
+
+    /**
+     * @param stream stream to write to
+     * @param bridgeId UID of the bridge being captured
+     * @param maxSize limit on the capture size in bytes
+     * @param fileName file name for diagnostic messages
+     */
+    public FrameCapture(OutputStream stream, String bridgeId, long maxSize, String fileName) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(stream));
+        startTime = System.nanoTime();
+        this.maxSize = maxSize;
+        this.fileName = fileName;
+
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeLong(System.currentTimeMillis());
+        out.writeUTF(bridgeId);
+    }
+
+    /**
+     * Start a new capture session
+     *
+     * @param fileName configured file name; the actual one gets a timestamp suffix
+     * @param bridgeId UID of the bridge being captured
+     */
+    public static FrameCapture open(String fileName, String bridgeId) throws IOException {
+        String session = SESSION_FORMAT.format(LocalDateTime.now());
+
+        for (int i = 0;; i++) {
+            String name = insertSuffix(fileName, "-" + session + (i > 0 ? "-" + i : ""));
+
+            try {
+                // Never overwrite anything
+                OutputStream stream = Files.newOutputStream(Paths.get(name), StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.WRITE);
+                return new FrameCapture(stream, bridgeId, MAX_SIZE, name);
+            } catch (FileAlreadyExistsException e) {
+                // Restarted within the same second, try the next one
+            }
+        }
+    }
+
+    /**
+     * @return file name with session start time inserted before the extension, e.g.
+     *         "bus.mcap" becomes "bus-20201231-235959.mcap"
+     */
+    public static String getSessionFileName(String fileName, LocalDateTime time) {
+        return insertSuffix(fileName, "-" + SESSION_FORMAT.format(time));
+    }
+
+    private static String insertSuffix(String fileName, String suffix) {
+        Path path = Paths.get(fileName);
+        Path name = path.getFileName();
+
+        if (name == null) {
+            return fileName + suffix;
+        }
+
+        String base = name.toString();
+        int dot = base.lastIndexOf('.');
+        String newName = dot > 0 ? base.substring(0, dot) + suffix + base.substring(dot) : base + suffix;
+
+        return path.resolveSibling(newName).toString();
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public synchronized void write(byte direction, int address, byte[] data, int length) throws IOException {
+        if (full) {
+            return;
+        }
+        // Record header is 15 bytes
+        if (out.size() + 15 + length > maxSize) {
+            logger.warn("Capture file {} has reached {} bytes, recording stopped", fileName, maxSize);
+            full = true;
+            out.flush();
+            return;
+        }
+
+        out.writeByte(direction);
+        out.writeLong(System.nanoTime() - startTime);
+        out.writeInt(address);
+        out.writeShort(length);
+        out.write(data, 0, length);
+
+        // A reply completes the exchange; flush so that the file is usable even
+        // if we crash or the bundle gets killed
+        if (direction == REPLY) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
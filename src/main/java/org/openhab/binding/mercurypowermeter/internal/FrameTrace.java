@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.mercurypowermeter.internal;
+
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+
+/**
+ * The {@link FrameTrace} keeps last N bus exchanges in memory. All the storage is preallocated
+ * and recording doesn't take any locks, so it's cheap enough to be always on.
+ * Every slot is protected by a sequence number, so that a reader can detect and skip a slot,
+ * being overwritten while it was copied.
+ *
+ * @author Pavel Fedin - Initial contribution
+ */
+@NonNullByDefault
+public class FrameTrace {
+    public static final int DEFAULT_SIZE = 256;
+    // Longest reply is 23 bytes, leave some room for garbage
+    public static final int MAX_DATA = 48;
+
+    public enum Status {
+        OK,
+        RESYNC, // Valid reply, but some garbage had to be dropped
+        INVALID,
+        TIMEOUT,
+        ERROR
+    }
+
+    public static class Entry {
+        public long sequence;
+        public long timestamp; // Milliseconds since epoch
+        public long duration; // Nanoseconds
+        public int address;
+        public byte command;
+        public int length; // Full received length, may be more than data.length
+        public Status status = Status.OK;
+        public byte[] data = new byte[0];
+    }
+
+    private static class Slot {
+        volatile long sequence = -1;
+        long timestamp;
+        long duration;
+        int address;
+        byte command;
+        int length;
+        Status status = Status.OK;
+        final byte[] data = new byte[MAX_DATA];
+    }
+
+    private final Slot[] slots;
+    private final AtomicLong next = new AtomicLong();
+
+    public FrameTrace(int size) {
+        slots = new Slot[Math.max(size, 1)];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    public int getSize() {
+        return slots.length;
+    }
+
+    public void record(long timestamp, long duration, int address, byte command, Status status, byte[] data,
+            int length) {
+        long seq = next.getAndIncrement();
+        Slot slot = slots[(int) (seq % slots.length)];
+
+        slot.sequence = -1; // Mark as being written
+        VarHandle.storeStoreFence();
+
+        slot.timestamp = timestamp;
+        slot.duration = duration;
+        slot.address = address;
+        slot.command = command;
+        slot.length = length;
+        slot.status = status;
+        System.arraycopy(data, 0, slot.data, 0, Math.min(length, MAX_DATA));
+
+        slot.sequence = seq; // Publish
+    }
+
+    /**
+     * @return recorded exchanges, oldest first
+     */
+    public List<Entry> snapshot() {
+        long end = next.get();
+        long start = Math.max(0, end - slots.length);
+        List<Entry> result = new ArrayList<>((int) (end - start));
+
+        for (long seq = start; seq < end; seq++) {
+            Slot slot = slots[(int) (seq % slots.length)];
+
+            if (slot.sequence != seq) {
+                continue; // Being written or already overwritten
+            }
+
+            Entry e = new Entry();
+            e.sequence = seq;
+            e.timestamp = slot.timestamp;
+            e.duration = slot.duration;
+            e.address = slot.address;
+            e.command = slot.command;
+            e.length = slot.length;
+            e.status = slot.status;
+            e.data = Arrays.copyOf(slot.data, Math.min(e.length, MAX_DATA));
+
+            VarHandle.loadLoadFence();
+            if (slot.sequence == seq) {
+                result.add(e);
+            }
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.mercurypowermeter.internal;
+
+import java.time.ZonedDateTime;
+import java.util.Date;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.openhab.core.items.Item;
+import org.openhab.core.persistence.ModifiablePersistenceService;
+import org.openhab.core.persistence.PersistenceService;
+import org.openhab.core.persistence.PersistenceServiceRegistry;
+import org.openhab.core.thing.ChannelUID;
+import org.openhab.core.thing.link.ItemChannelLinkRegistry;
+import org.openhab.core.types.State;
+
+/**
+ * The {@link HistoryWriter} stores historical channel values with their original timestamps
+ * into default persistence service, for all items, linked to the channel.
+ *
+ * @author Pavel Fedin - Initial contribution
+ */
+@NonNullByDefault
+public class HistoryWriter {
+    private final PersistenceServiceRegistry persistenceRegistry;
+    private final ItemChannelLinkRegistry linkRegistry;
+
+    public HistoryWriter(PersistenceServiceRegistry persistenceRegistry, ItemChannelLinkRegistry linkRegistry) {
+        this.persistenceRegistry = persistenceRegistry;
+        this.linkRegistry = linkRegistry;
+    }
+
+    /**
+     * @return true if the default persistence service supports storing historical values
+     */
+    public boolean isAvailable() {
+        return persistenceRegistry.getDefault() instanceof ModifiablePersistenceService;
+    }
+
+    public void store(ChannelUID channel, ZonedDateTime time, State state) {
+        PersistenceService service = persistenceRegistry.getDefault();
+
+        if (service instanceof ModifiablePersistenceService) {
+            Date date = Date.from(time.toInstant());
+
+            for (Item item : linkRegistry.getLinkedItems(channel)) {
+                ((ModifiablePersistenceService) service).store(item, date, state);
+            }
+        }
+    }
+}
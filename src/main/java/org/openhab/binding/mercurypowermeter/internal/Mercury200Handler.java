@@ -15,6 +15,14 @@ package org.openhab.binding.mercurypowermeter.internal;
 import static org.openhab.binding.mercurypowermeter.internal.MercuryBindingConstants.*;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.DateTimeException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
@@ -24,6 +32,7 @@ import org.openhab.binding.mercurypowermeter.internal.dto.M200Protocol;
 import org.openhab.binding.mercurypowermeter.internal.dto.M200Protocol.Packet;
 import org.openhab.core.library.types.DateTimeType;
 import org.openhab.core.library.types.DecimalType;
+import org.openhab.core.storage.Storage;
 import org.openhab.core.thing.Bridge;
 import org.openhab.core.thing.ChannelUID;
 import org.openhab.core.thing.Thing;
@@ -32,6 +41,8 @@ import org.openhab.core.thing.ThingStatusDetail;
 import org.openhab.core.thing.binding.BaseThingHandler;
 import org.openhab.core.thing.binding.BridgeHandler;
 import org.openhab.core.types.Command;
+import org.openhab.core.types.RefreshType;
+import org.openhab.core.types.State;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,18 +54,51 @@ import org.slf4j.LoggerFactory;
  */
 @NonNullByDefault
 public class Mercury200Handler extends BaseThingHandler {
+    // Commands in polling order, and channels, updated from their replies
+    private static final Map<Byte, String[]> COMMAND_CHANNELS = new LinkedHashMap<>();
+
+    static {
+        COMMAND_CHANNELS.put(M200Protocol.Command.READ_TIME, new String[] { CH_DATETIME });
+        COMMAND_CHANNELS.put(M200Protocol.Command.READ_COUNTERS, CH_ENERGY);
+        COMMAND_CHANNELS.put(M200Protocol.Command.READ_BATTERY, new String[] { CH_BATTERY });
+        COMMAND_CHANNELS.put(M200Protocol.Command.READ_TARIFFS, new String[] { CH_NUM_TARIFFS });
+        COMMAND_CHANNELS.put(M200Protocol.Command.READ_TARIFF, new String[] { CH_TARIFF });
+        COMMAND_CHANNELS.put(M200Protocol.Command.READ_UIP, new String[] { CH_U, CH_I, CH_P });
+    }
+
+    // Last known values are persisted at most once per this interval, and on dispose
+    private static final long SAVE_INTERVAL = 60000;
+    // Backfill reads one archive record per step, seconds
+    private static final long BACKFILL_START_DELAY = 60;
+    private static final long BACKFILL_INTERVAL = 10;
+
     private final Logger logger = LoggerFactory.getLogger(Mercury200Handler.class);
     private MercuryConfiguration config = new MercuryConfiguration();
     private @Nullable ScheduledFuture<?> pollFuture;
     private @Nullable SerialBusHandler bus;
+    private int pollCount;
+    // Last known values are saved here for warm start, keyed by channel UID
+    private final Storage<String> stateStorage;
+    // Values to be saved, keyed by channel ID. Only tracked with warm start enabled
+    private final Map<String, State> lastValues = new ConcurrentHashMap<>();
+    private long lastSaved;
+    // Set once the Thing is being removed; its saved values must not be written back
+    private boolean removed;
+    private final HistoryWriter historyWriter;
+    private @Nullable ScheduledFuture<?> backfillFuture;
+    private @Nullable EnergyBackfill backfill;
 
-    public Mercury200Handler(Thing thing) {
+    public Mercury200Handler(Thing thing, Storage<String> stateStorage, HistoryWriter historyWriter) {
         super(thing);
+        this.stateStorage = stateStorage;
+        this.historyWriter = historyWriter;
     }
 
     @Override
     public void handleCommand(ChannelUID channelUID, Command command) {
-        // TODO
+        if (command instanceof RefreshType) {
+            refresh(channelUID.getId());
+        }
     }
 
     @Override
@@ -73,17 +117,82 @@ public class Mercury200Handler extends BaseThingHandler {
             return;
         }
 
-        bus = (SerialBusHandler) handler;
+        SerialBusHandler bus = (SerialBusHandler) handler;
+        this.bus = bus;
         config = getConfigAs(MercuryConfiguration.class);
+        pollCount = 0;
+
+        if (config.warm_start && restoreValues()) {
+            updateStatus(ThingStatus.UNKNOWN, ThingStatusDetail.NONE,
+                    "Showing last known values, waiting for the first poll");
+        } else {
+            updateStatus(ThingStatus.UNKNOWN);
+        }
 
-        updateStatus(ThingStatus.UNKNOWN);
-        logger.trace("Successfully initialized, starting poll");
-        pollFuture = scheduler.scheduleWithFixedDelay(this::poll, 1, config.poll_interval, TimeUnit.SECONDS);
+        updateDemand();
+
+        // Don't let all the meters hit the bus at once on startup; every meter gets its own
+        // slot within the bus sweep. The first poll is always a full sweep of linked channels.
+        long delay = bus.allocateStartDelay(bus.getPlanner().getCycleTime(getThing().getUID().getAsString()));
+
+        logger.trace("Successfully initialized, starting poll in {} ms", delay);
+        pollFuture = scheduler.scheduleWithFixedDelay(this::poll, delay, config.poll_interval * 1000L,
+                TimeUnit.MILLISECONDS);
+
+        if (config.backfill) {
+            EnergyBackfill backfill = new EnergyBackfill(bus, config.address, getThing().getUID(), stateStorage,
+                    historyWriter);
+            this.backfill = backfill;
+            backfillFuture = scheduler.scheduleWithFixedDelay(backfill::step, BACKFILL_START_DELAY,
+                    BACKFILL_INTERVAL, TimeUnit.SECONDS);
+        }
     }
 
     @Override
     public void dispose() {
         stopPoll();
+        saveValues();
+
+        SerialBusHandler bus = this.bus;
+        if (bus != null) {
+            bus.removeDemand(getThing().getUID().getAsString());
+            this.bus = null;
+        }
+    }
+
+    @Override
+    public void channelLinked(ChannelUID channelUID) {
+        super.channelLinked(channelUID);
+        updateDemand();
+    }
+
+    @Override
+    public void channelUnlinked(ChannelUID channelUID) {
+        super.channelUnlinked(channelUID);
+        updateDemand();
+    }
+
+    public int getAddress() {
+        return config.address;
+    }
+
+    private void updateDemand() {
+        SerialBusHandler bus = this.bus;
+
+        if (bus != null) {
+            bus.setDemand(getThing().getUID().getAsString(), config.poll_interval, getPolledCommands());
+        }
+    }
+
+    private List<Byte> getPolledCommands() {
+        List<Byte> commands = new ArrayList<>();
+
+        for (Map.Entry<Byte, String[]> entry : COMMAND_CHANNELS.entrySet()) {
+            if (isAnyLinked(entry.getValue())) {
+                commands.add(entry.getKey());
+            }
+        }
+        return commands;
     }
 
     private void stopPoll() {
@@ -91,95 +200,205 @@ public class Mercury200Handler extends BaseThingHandler {
             pollFuture.cancel(true);
             pollFuture = null;
         }
+        if (backfillFuture != null) {
+            backfillFuture.cancel(true);
+            backfillFuture = null;
+        }
+        // Cancelling the future doesn't wait for a step, which is already running
+        EnergyBackfill backfill = this.backfill;
+        if (backfill != null) {
+            backfill.cancel();
+            this.backfill = null;
+        }
     }
 
     private void poll() {
+        SerialBusHandler bus = this.bus;
+
+        if (bus != null && bus.isPollingPaused()) {
+            logger.trace("Bus is busy with benchmark, skipping poll");
+            return;
+        }
+
         try {
             boolean ok = true;
+            // If the bus is overloaded, slowly changing values are only read every N-th cycle
+            boolean fullCycle = bus == null || pollCount++ % bus.getPlanner().getLowPriorityDivider() == 0;
 
             // Our serial bus is slow (9600 bps max), so we are polling only for used channels
-            if (isLinked(CH_DATETIME)) {
-                Packet reply = doPacket(M200Protocol.Command.READ_TIME);
+            for (byte command : getPolledCommands()) {
+                if (!fullCycle && BusPlanner.isLowPriority(command)) {
+                    continue;
+                }
+                if (bus != null && bus.isPollingPaused()) {
+                    return; // Benchmark is waiting for us, don't queue any more
+                }
+
+                Packet reply = doPacket(command);
 
                 if (reply != null) {
-                    updateState(CH_DATETIME, new DateTimeType(reply.getDateTime()));
+                    processReply(command, reply);
                 } else {
                     ok = false;
                 }
             }
-            if (isLinked(CH_ENERGY1) || isLinked(CH_ENERGY2) || isLinked(CH_ENERGY3) || isLinked(CH_ENERGY4)) {
-                Packet reply = doPacket(M200Protocol.Command.READ_COUNTERS);
 
-                if (reply != null) {
-                    // Reply contains four 32-bit BCD values, unit is tenth of Wt*H.
-                    // Report it as KWt*H for simplicity and usability
-                    for (int i = 0; i < CH_ENERGY.length; i++) {
-                        double kwt_h = Util.BCDToInt(reply.getInt(i * 4)) * 0.01;
-                        updateState(CH_ENERGY[i], new DecimalType(kwt_h));
-                    }
-                } else {
-                    ok = false;
+            if (ok) {
+                updateStatus(ThingStatus.ONLINE);
+
+                if (config.warm_start && System.currentTimeMillis() - lastSaved > SAVE_INTERVAL) {
+                    saveValues();
                 }
+            } else {
+                updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR, "Invalid response received");
+            }
+        } catch (InterruptedIOException e) {
+            // Poll is being cancelled, e.g. on dispose; this says nothing about the meter
+            logger.trace("Poll interrupted");
+        } catch (IOException e) {
+            updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR, e.getMessage());
+        } catch (BridgeOfflineException e) {
+            updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.BRIDGE_OFFLINE);
+        }
+    }
+
+    private void refresh(String channelId) {
+        SerialBusHandler bus = this.bus;
+
+        if (bus == null) {
+            return; // Not initialized yet
+        }
+
+        for (Map.Entry<Byte, String[]> entry : COMMAND_CHANNELS.entrySet()) {
+            if (Arrays.asList(entry.getValue()).contains(channelId)) {
+                byte command = entry.getKey();
+
+                bus.refresh(new Packet(config.address, command)).whenComplete((reply, error) -> {
+                    if (this.bus == null) {
+                        return; // Disposed while we were waiting
+                    }
+                    if (error instanceof BridgeOfflineException) {
+                        updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.BRIDGE_OFFLINE);
+                    } else if (error != null) {
+                        updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR, error.getMessage());
+                    } else if (reply != null) {
+                        processReply(command, reply);
+                    }
+                });
+                return;
             }
-            if (isLinked(CH_BATTERY)) {
-                Packet reply = doPacket(M200Protocol.Command.READ_BATTERY);
+        }
+    }
 
-                if (reply != null) {
-                    // Reply contains 16-bit BCD value in format VV.VV
-                    double volts = Util.BCDToInt(reply.getShort(0)) * 0.01;
-                    updateState(CH_BATTERY, new DecimalType(volts));
-                } else {
-                    ok = false;
-                }
+    private boolean isAnyLinked(String[] channels) {
+        for (String ch : channels) {
+            if (isLinked(ch)) {
+                return true;
             }
-            if (isLinked(CH_NUM_TARIFFS)) {
-                Packet reply = doPacket(M200Protocol.Command.READ_TARIFFS);
+        }
+        return false;
+    }
 
-                if (reply != null) {
-                    // One byte - number of tariffs
-                    updateState(CH_NUM_TARIFFS, new DecimalType(reply.getByte(0)));
-                } else {
-                    ok = false;
+    private void processReply(byte command, Packet reply) {
+        switch (command) {
+            case M200Protocol.Command.READ_TIME:
+                publish(CH_DATETIME, new DateTimeType(reply.getDateTime()));
+                break;
+            case M200Protocol.Command.READ_COUNTERS:
+                // Reply contains four 32-bit BCD values, unit is tenth of Wt*H.
+                // Report it as KWt*H for simplicity and usability
+                for (int i = 0; i < CH_ENERGY.length; i++) {
+                    double kwt_h = Util.BCDToInt(reply.getInt(i * 4)) * 0.01;
+                    publish(CH_ENERGY[i], new DecimalType(kwt_h));
                 }
+                break;
+            case M200Protocol.Command.READ_BATTERY:
+                // Reply contains 16-bit BCD value in format VV.VV
+                double volts = Util.BCDToInt(reply.getShort(0)) * 0.01;
+                publish(CH_BATTERY, new DecimalType(volts));
+                break;
+            case M200Protocol.Command.READ_TARIFFS:
+                // One byte - number of tariffs
+                publish(CH_NUM_TARIFFS, new DecimalType(reply.getByte(0)));
+                break;
+            case M200Protocol.Command.READ_TARIFF:
+                // One byte - number of current tariff starting from 0
+                publish(CH_TARIFF, new DecimalType(reply.getByte(0) + 1));
+                break;
+            case M200Protocol.Command.READ_UIP:
+                // 2 bytes - BCD voltage
+                // 2 bytes - BCD current
+                // 3 bytes - BCD power
+                // Multipliers are obtained experimentally by comparing values with
+                // ones reported by official Configurator software.
+                // Thanks Incotex for so crappy protocol doc!
+                publish(CH_U, new DecimalType(Util.BCDToInt(reply.getShort(0)) * 0.1));
+                publish(CH_I, new DecimalType(Util.BCDToInt(reply.getShort(2)) * 0.01));
+                publish(CH_P, new DecimalType(Util.BCDToInt(reply.getTriple(4)) * 0.001));
+                break;
+        }
+    }
+
+    private void publish(String channelId, State state) {
+        updateState(channelId, state);
+        if (config.warm_start) {
+            lastValues.put(channelId, state);
+        }
+    }
+
+    private void saveValues() {
+        synchronized (lastValues) {
+            if (!config.warm_start || removed) {
+                return;
             }
-            if (isLinked(CH_TARIFF)) {
-                Packet reply = doPacket(M200Protocol.Command.READ_TARIFF);
 
-                if (reply != null) {
-                    // One byte - number of current tariff starting from 0
-                    updateState(CH_TARIFF, new DecimalType(reply.getByte(0) + 1));
-                } else {
-                    ok = false;
-                }
+            for (Map.Entry<String, State> entry : lastValues.entrySet()) {
+                stateStorage.put(new ChannelUID(getThing().getUID(), entry.getKey()).getAsString(),
+                        entry.getValue().toFullString());
             }
-            if (isLinked(CH_U) || isLinked(CH_I) || isLinked(CH_P)) {
-                Packet reply = doPacket(M200Protocol.Command.READ_UIP);
+        }
+        lastSaved = System.currentTimeMillis();
+    }
 
-                if (reply != null) {
-                    // 2 bytes - BCD voltage
-                    // 2 bytes - BCD current
-                    // 3 bytes - BCD power
-                    // Multipliers are obtained experimentally by comparing values with
-                    // ones reported by official Configurator software.
-                    // Thanks Incotex for so crappy protocol doc!
-                    updateState(CH_U, new DecimalType(Util.BCDToInt(reply.getShort(0)) * 0.1));
-                    updateState(CH_I, new DecimalType(Util.BCDToInt(reply.getShort(2)) * 0.01));
-                    updateState(CH_P, new DecimalType(Util.BCDToInt(reply.getTriple(4)) * 0.001));
-                } else {
-                    ok = false;
+    private boolean restoreValues() {
+        boolean restored = false;
+
+        for (String[] channels : COMMAND_CHANNELS.values()) {
+            for (String ch : channels) {
+                String value = stateStorage.get(new ChannelUID(getThing().getUID(), ch).getAsString());
+
+                if (value == null) {
+                    continue;
+                }
+
+                try {
+                    updateState(ch, CH_DATETIME.equals(ch) ? new DateTimeType(value) : new DecimalType(value));
+                    restored = true;
+                } catch (IllegalArgumentException | DateTimeException e) {
+                    logger.debug("Ignoring malformed saved value {} for {}", value, ch);
                 }
             }
+        }
 
-            if (ok) {
-                updateStatus(ThingStatus.ONLINE);
-            } else {
-                updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR, "Invalid response received");
+        return restored;
+    }
+
+    @Override
+    public void handleRemoval() {
+        // dispose() follows, make sure nothing writes our keys back after they're removed
+        stopPoll();
+        synchronized (lastValues) {
+            removed = true;
+            lastValues.clear();
+        }
+
+        stateStorage.remove(EnergyBackfill.getCheckpointKey(getThing().getUID()));
+        for (String[] channels : COMMAND_CHANNELS.values()) {
+            for (String ch : channels) {
+                stateStorage.remove(new ChannelUID(getThing().getUID(), ch).getAsString());
             }
-        } catch (IOException e) {
-            updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR, e.getMessage());
-        } catch (BridgeOfflineException e) {
-            updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.BRIDGE_OFFLINE);
         }
+        super.handleRemoval();
     }
 
     private @Nullable Packet doPacket(byte command) throws IOException, BridgeOfflineException {
@@ -23,7 +23,7 @@ import org.openhab.core.thing.ThingTypeUID;
  */
 @NonNullByDefault
 public class MercuryBindingConstants {
-    private static final String BINDING_ID = "mercurypowermeter";
+    public static final String BINDING_ID = "mercurypowermeter";
 
     // List of all Thing Type UIDs
     public static final ThingTypeUID THING_TYPE_M200 = new ThingTypeUID(BINDING_ID, "mercury200");
@@ -42,4 +42,5 @@ public class MercuryBindingConstants {
     public static final String CH_I = "current";
     public static final String CH_P = "power";
     public static final String CH_DATETIME = "datetime";
+    public static final String CH_BUS_LOAD = "bus_load";
 }
@@ -20,4 +20,6 @@ package org.openhab.binding.mercurypowermeter.internal;
 public class MercuryConfiguration {
     public int address;
     public int poll_interval;
+    public boolean warm_start;
+    public boolean backfill;
 }
@@ -22,12 +22,15 @@ import java.util.stream.Stream;
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
 import org.openhab.core.io.transport.serial.SerialPortManager;
+import org.openhab.core.persistence.PersistenceServiceRegistry;
+import org.openhab.core.storage.StorageService;
 import org.openhab.core.thing.Bridge;
 import org.openhab.core.thing.Thing;
 import org.openhab.core.thing.ThingTypeUID;
 import org.openhab.core.thing.binding.BaseThingHandlerFactory;
 import org.openhab.core.thing.binding.ThingHandler;
 import org.openhab.core.thing.binding.ThingHandlerFactory;
+import org.openhab.core.thing.link.ItemChannelLinkRegistry;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
 
@@ -45,6 +48,9 @@ public class MercuryHandlerFactory extends BaseThingHandlerFactory {
             .unmodifiableSet(Stream.of(THING_TYPE_SERIAL, THING_TYPE_M200).collect(Collectors.toSet()));;
 
     private @Nullable SerialPortManager serialPortManager;
+    private @Nullable StorageService storageService;
+    private @Nullable PersistenceServiceRegistry persistenceServiceRegistry;
+    private @Nullable ItemChannelLinkRegistry itemChannelLinkRegistry;
 
     @Override
     public boolean supportsThingType(ThingTypeUID thingTypeUID) {
@@ -56,7 +62,18 @@ public class MercuryHandlerFactory extends BaseThingHandlerFactory {
         ThingTypeUID thingTypeUID = thing.getThingTypeUID();
 
         if (THING_TYPE_M200.equals(thingTypeUID)) {
-            return new Mercury200Handler(thing);
+            StorageService storage = storageService;
+            PersistenceServiceRegistry persistence = persistenceServiceRegistry;
+            ItemChannelLinkRegistry links = itemChannelLinkRegistry;
+
+            if (storage == null) {
+                throw new IllegalStateException("StorageService is not present");
+            }
+            if (persistence == null || links == null) {
+                throw new IllegalStateException("PersistenceServiceRegistry or ItemChannelLinkRegistry is not present");
+            }
+            return new Mercury200Handler(thing, storage.getStorage(BINDING_ID, getClass().getClassLoader()),
+                    new HistoryWriter(persistence, links));
         } else if (THING_TYPE_SERIAL.equals(thingTypeUID)) {
             SerialPortManager serialManager = serialPortManager;
 
@@ -77,4 +94,31 @@ public class MercuryHandlerFactory extends BaseThingHandlerFactory {
     protected void unsetSerialPortManager(final SerialPortManager serialPortManager) {
         this.serialPortManager = null;
     }
+
+    @Reference
+    protected void setStorageService(final StorageService storageService) {
+        this.storageService = storageService;
+    }
+
+    protected void unsetStorageService(final StorageService storageService) {
+        this.storageService = null;
+    }
+
+    @Reference
+    protected void setPersistenceServiceRegistry(final PersistenceServiceRegistry persistenceServiceRegistry) {
+        this.persistenceServiceRegistry = persistenceServiceRegistry;
+    }
+
+    protected void unsetPersistenceServiceRegistry(final PersistenceServiceRegistry persistenceServiceRegistry) {
+        this.persistenceServiceRegistry = null;
+    }
+
+    @Reference
+    protected void setItemChannelLinkRegistry(final ItemChannelLinkRegistry itemChannelLinkRegistry) {
+        this.itemChannelLinkRegistry = itemChannelLinkRegistry;
+    }
+
+    protected void unsetItemChannelLinkRegistry(final ItemChannelLinkRegistry itemChannelLinkRegistry) {
+        this.itemChannelLinkRegistry = null;
+    }
 }
@@ -0,0 +1,210 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.mercurypowermeter.internal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.mercurypowermeter.internal.CaptureReader.Record;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link ReplayTransport} emulates the serial port by playing back a file, recorded by
+ * {@link FrameCapture}. Every request, written into the output stream, is matched to the next
+ * recorded identical request (same address, command and data), and the reply, recorded for it,
+ * becomes available from the input stream. Live polling order doesn't have to follow the recording:
+ * recorded exchanges, skipped while looking for a match, are kept for later requests.
+ * A recorded timeout (request without a reply), as well as a request which has no match in the
+ * capture, reads as zero bytes, just like a real port does.
+ *
+ * @author Pavel Fedin - Initial contribution
+ */
+@NonNullByDefault
+public class ReplayTransport implements Closeable {
+    private final Logger logger = LoggerFactory.getLogger(ReplayTransport.class);
+
+    // Limit on recorded exchanges kept in memory while looking for a match
+    private static final int MAX_LOOKAHEAD = 4096;
+
+    private static class Exchange {
+        final byte @Nullable [] reply;
+        final long latency;
+
+        Exchange(byte @Nullable [] reply, long latency) {
+            this.reply = reply;
+            this.latency = latency;
+        }
+    }
+
+    private final CaptureReader reader;
+    private final boolean realtime;
+    // Recorded exchanges, read ahead from the capture, keyed by request data
+    private final Map<String, Deque<Exchange>> lookahead = new HashMap<>();
+    private int lookaheadSize;
+    private boolean readerFinished;
+    private byte[] pending = new byte[0];
+    private int pendingOffset;
+    private boolean finished;
+
+    private final InputStream dataIn = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            synchronized (ReplayTransport.this) {
+                return pendingOffset < pending.length ? Byte.toUnsignedInt(pending[pendingOffset++]) : -1;
+            }
+        }
+
+        @Override
+        public int read(byte @Nullable [] b, int off, int len) throws IOException {
+            synchronized (ReplayTransport.this) {
+                int n = Math.min(len, pending.length - pendingOffset);
+
+                if (n == 0) {
+                    // Nothing more recorded for this request
+                    return finished ? -1 : 0;
+                }
+
+                System.arraycopy(pending, pendingOffset, b, off, n);
+                pendingOffset += n;
+                return n;
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized (ReplayTransport.this) {
+                return pending.length - pendingOffset;
+            }
+        }
+    };
+
+    private final OutputStream dataOut = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte @Nullable [] b, int off, int len) throws IOException {
+            if (b != null) {
+                request(Arrays.copyOfRange(b, off, off + len));
+            }
+        }
+    };
+
+    /**
+     * @param reader capture to play back
+     * @param realtime true to reproduce recorded reply latencies, false to run at maximum speed
+     */
+    public ReplayTransport(CaptureReader reader, boolean realtime) {
+        this.reader = reader;
+        this.realtime = realtime;
+    }
+
+    public InputStream getInputStream() {
+        return dataIn;
+    }
+
+    public OutputStream getOutputStream() {
+        return dataOut;
+    }
+
+    private synchronized void request(byte[] data) throws IOException {
+        String key = Util.toHex(data);
+        Exchange ex = findExchange(key);
+
+        pending = new byte[0];
+        pendingOffset = 0;
+
+        if (ex == null) {
+            if (readerFinished && lookaheadSize == 0) {
+                logger.debug("End of capture reached");
+                finished = true;
+            } else {
+                logger.debug("Request {} not found in the capture", key);
+            }
+            return;
+        }
+
+        byte[] reply = ex.reply;
+        if (reply == null) {
+            return; // Recorded timeout
+        }
+
+        if (realtime) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(ex.latency);
+            } catch (InterruptedException e) {
+            }
+        }
+
+        pending = reply;
+    }
+
+    private @Nullable Exchange findExchange(String key) throws IOException {
+        Deque<Exchange> queue = lookahead.get(key);
+
+        if (queue != null && !queue.isEmpty()) {
+            lookaheadSize--;
+            return queue.poll();
+        }
+
+        while (!readerFinished && lookaheadSize < MAX_LOOKAHEAD) {
+            Record req = reader.next();
+
+            if (req == null) {
+                readerFinished = true;
+                break;
+            }
+            if (req.direction != FrameCapture.REQUEST) {
+                continue; // Unsolicited data
+            }
+
+            Record reply = reader.peek();
+            Exchange ex;
+
+            if (reply != null && reply.direction == FrameCapture.REPLY) {
+                reader.next();
+                ex = new Exchange(reply.data, reply.timestamp - req.timestamp);
+            } else {
+                ex = new Exchange(null, 0);
+            }
+
+            String reqKey = Util.toHex(req.data);
+            if (reqKey.equals(key)) {
+                return ex;
+            }
+
+            lookahead.computeIfAbsent(reqKey, k -> new ArrayDeque<>()).add(ex);
+            lookaheadSize++;
+        }
+
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -20,4 +20,9 @@ package org.openhab.binding.mercurypowermeter.internal;
 public class SerialBusConfiguration {
     public String port;
     public int baud;
+    public int read_timeout = 1000;
+    public String capture_file;
+    public String replay_file;
+    public boolean replay_realtime;
+    public int trace_size = FrameTrace.DEFAULT_SIZE;
 }
@@ -12,13 +12,19 @@
  */
 package org.openhab.binding.mercurypowermeter.internal;
 
+import static org.openhab.binding.mercurypowermeter.internal.MercuryBindingConstants.*;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
 import java.util.TooManyListenersException;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.core.config.core.Configuration;
 import org.openhab.core.io.transport.serial.PortInUseException;
 import org.openhab.core.io.transport.serial.SerialPort;
 import org.openhab.core.io.transport.serial.SerialPortEvent;
@@ -26,20 +32,30 @@ import org.openhab.core.io.transport.serial.SerialPortEventListener;
 import org.openhab.core.io.transport.serial.SerialPortIdentifier;
 import org.openhab.core.io.transport.serial.SerialPortManager;
 import org.openhab.core.io.transport.serial.UnsupportedCommOperationException;
+import org.openhab.core.library.types.DecimalType;
 import org.openhab.core.thing.Bridge;
 import org.openhab.core.thing.ChannelUID;
 import org.openhab.core.thing.ThingStatus;
 import org.openhab.core.thing.ThingStatusDetail;
 import org.openhab.core.types.Command;
+import org.openhab.core.types.RefreshType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 @NonNullByDefault
 public class SerialBusHandler extends BusHandler implements SerialPortEventListener {
+    private static final long INITIAL_POLL_DELAY = 1000;
+    // Meter's reaction time, allowed for low priority exchanges, milliseconds
+    private static final int LOW_PRIORITY_MARGIN = 150;
+
     private final Logger logger = LoggerFactory.getLogger(SerialBusHandler.class);
     private SerialPortManager serialPortManager;
     private SerialBusConfiguration config = new SerialBusConfiguration();
     private @Nullable SerialPort serialPort;
+    private @Nullable ReplayTransport replay;
+    private final BusPlanner planner = new BusPlanner();
+    private int lastDivider = 1;
+    private long nextStartSlot;
 
     public SerialBusHandler(Bridge bridge, SerialPortManager portManager) {
         super(bridge);
@@ -48,12 +64,41 @@ public class SerialBusHandler extends BusHandler implements SerialPortEventListe
 
     @Override
     public void handleCommand(ChannelUID channelUID, Command command) {
-        // TODO Auto-generated method stub
+        if (command instanceof RefreshType && CH_BUS_LOAD.equals(channelUID.getId())) {
+            updateState(CH_BUS_LOAD, new DecimalType(planner.getLoad() * 100));
+        }
     }
 
     @Override
     public void initialize() {
         config = getConfigAs(SerialBusConfiguration.class);
+        planner.setTiming(config.baud, getDelay());
+        updatePlan();
+
+        if (trace.getSize() != config.trace_size) {
+            trace = new FrameTrace(config.trace_size);
+        }
+
+        String captureFile = config.capture_file;
+        if (!isEmpty(captureFile)) {
+            FrameCapture capture;
+
+            try {
+                capture = FrameCapture.open(captureFile, getThing().getUID().getAsString());
+            } catch (IOException e) {
+                updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.CONFIGURATION_ERROR,
+                        "Failed to create capture file " + captureFile + ": " + e.getMessage());
+                return;
+            }
+            this.capture = capture;
+            logger.info("Capturing bus traffic to {}", capture.getFileName());
+        }
+
+        String replayFile = config.replay_file;
+        if (!isEmpty(replayFile)) {
+            startReplay(replayFile);
+            return;
+        }
 
         SerialPortIdentifier portIdentifier = serialPortManager.getIdentifier(config.port);
         if (portIdentifier == null) {
@@ -71,11 +116,7 @@ public class SerialBusHandler extends BusHandler implements SerialPortEventListe
         }
 
         try {
-            commPort.setSerialPortParams(config.baud, SerialPort.DATABITS_8, SerialPort.STOPBITS_1,
-                    SerialPort.PARITY_NONE);
-            commPort.enableReceiveThreshold(8);
-            commPort.enableReceiveTimeout(1000);
-            commPort.setFlowControlMode(SerialPort.FLOWCONTROL_NONE);
+            setPortParams(commPort, config);
         } catch (UnsupportedCommOperationException e) {
             updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.CONFIGURATION_ERROR, "Invalid port configuration");
             return;
@@ -123,20 +164,187 @@ public class SerialBusHandler extends BusHandler implements SerialPortEventListe
         updateStatus(ThingStatus.ONLINE);
     }
 
+    private void setPortParams(SerialPort port, SerialBusConfiguration config)
+            throws UnsupportedCommOperationException {
+        port.setSerialPortParams(config.baud, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+        port.enableReceiveThreshold(8);
+        port.enableReceiveTimeout(config.read_timeout);
+        port.setFlowControlMode(SerialPort.FLOWCONTROL_NONE);
+    }
+
+    private static boolean isEmpty(@Nullable String s) {
+        return s == null || s.isEmpty();
+    }
+
     @Override
-    public void dispose() {
+    public void handleConfigurationUpdate(Map<String, Object> configurationParameters) {
         SerialPort port = serialPort;
 
+        validateConfigurationParameters(configurationParameters);
+
+        Configuration configuration = editConfiguration();
+        for (Map.Entry<String, Object> param : configurationParameters.entrySet()) {
+            configuration.put(param.getKey(), param.getValue());
+        }
+
+        SerialBusConfiguration newConfig = configuration.as(SerialBusConfiguration.class);
+
+        // Opening a different port or switching to replay requires full restart
+        if (port == null || !Objects.equals(newConfig.port, config.port) || !isEmpty(newConfig.replay_file)) {
+            super.handleConfigurationUpdate(configurationParameters);
+            return;
+        }
+
+        // Wait for the exchange in progress to complete and keep everybody else waiting
+        // while we reconfigure. Meters don't notice anything, their polls simply resume.
+        try {
+            acquireBus(Priority.HIGH);
+        } catch (IOException e) {
+            // Interrupted, fall back to full restart
+            super.handleConfigurationUpdate(configurationParameters);
+            return;
+        }
+
+        try {
+            setPortParams(port, newConfig);
+            if (!Objects.equals(newConfig.capture_file, config.capture_file)) {
+                restartCapture(newConfig.capture_file);
+            }
+            if (trace.getSize() != newConfig.trace_size) {
+                trace = new FrameTrace(newConfig.trace_size);
+            }
+            config = newConfig;
+        } catch (UnsupportedCommOperationException e) {
+            logger.warn("Failed to reconfigure {} in place, restarting", config.port);
+            port = null;
+        } finally {
+            releaseBus();
+        }
+
         if (port == null) {
-            return; // Nothing to do in this case
+            super.handleConfigurationUpdate(configurationParameters);
+            return;
+        }
+
+        updateConfiguration(configuration);
+        planner.setTiming(config.baud, getDelay());
+        updatePlan();
+
+        logger.debug("Bus reconfigured in place: {} baud, read timeout {} ms", config.baud, config.read_timeout);
+    }
+
+    private void restartCapture(@Nullable String fileName) {
+        safeClose(capture);
+        capture = null;
+
+        if (!isEmpty(fileName)) {
+            try {
+                FrameCapture capture = FrameCapture.open(fileName, getThing().getUID().getAsString());
+
+                this.capture = capture;
+                logger.info("Capturing bus traffic to {}", capture.getFileName());
+            } catch (IOException e) {
+                logger.warn("Failed to create capture file {}: {}", fileName, e.getMessage());
+            }
         }
+    }
 
-        port.removeEventListener();
+    private void startReplay(String fileName) {
+        ReplayTransport replay;
+
+        try {
+            replay = new ReplayTransport(CaptureReader.open(fileName), config.replay_realtime);
+        } catch (IOException e) {
+            updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.CONFIGURATION_ERROR,
+                    "Failed to open replay file " + fileName + ": " + e.getMessage());
+            return;
+        }
+
+        // Closing the streams does nothing, so we close the transport ourselves
+        this.replay = replay;
+        this.dataIn = replay.getInputStream();
+        this.dataOut = replay.getOutputStream();
+
+        logger.info("Replaying bus traffic from {}", fileName);
+
+        planner.setTiming(config.baud, getDelay());
+        updatePlan();
+
+        updateStatus(ThingStatus.ONLINE);
+    }
+
+    @Override
+    public void dispose() {
+        SerialPort port = serialPort;
+
+        if (port != null) {
+            port.removeEventListener();
+        }
 
         super.dispose();
 
-        port.close();
-        serialPort = null;
+        if (port != null) {
+            port.close();
+            serialPort = null;
+        }
+
+        safeClose(replay);
+        replay = null;
+    }
+
+    /**
+     * Register bus time demand of a meter. Called by meter handlers on configuration changes.
+     *
+     * @param meterId meter identifier, Thing UID
+     * @param pollInterval poll interval in seconds
+     * @param commands commands, issued within every poll cycle
+     */
+    public void setDemand(String meterId, int pollInterval, Collection<Byte> commands) {
+        planner.setDemand(meterId, pollInterval, commands);
+        updatePlan();
+    }
+
+    public void removeDemand(String meterId) {
+        planner.removeDemand(meterId);
+        updatePlan();
+    }
+
+    /**
+     * Allocate a startup slot on the bus, so that meters don't all poll at once
+     *
+     * @param cycleTime bus time, required by a meter's poll cycle, in milliseconds
+     * @return delay before the first poll in milliseconds
+     */
+    public synchronized long allocateStartDelay(double cycleTime) {
+        long now = System.currentTimeMillis();
+        long delay = Math.max(nextStartSlot - now, INITIAL_POLL_DELAY);
+
+        nextStartSlot = now + delay + (long) Math.ceil(cycleTime);
+        return delay;
+    }
+
+    public BusPlanner getPlanner() {
+        return planner;
+    }
+
+    private synchronized void updatePlan() {
+        int divider = planner.getLowPriorityDivider();
+
+        if (divider != lastDivider) {
+            if (planner.getLoad() > 1.0) {
+                logger.warn("Bus {} is overloaded: requested load {}%, {}% even with slowly changing values polled "
+                        + "every {} cycles; please increase poll intervals", getThing().getUID(),
+                        Math.round(planner.getDemandLoad() * 100), Math.round(planner.getLoad() * 100), divider);
+            } else if (divider > 1) {
+                logger.warn("Bus {} is overloaded: requested load {}%; slowly changing values will be polled every "
+                        + "{} cycles", getThing().getUID(), Math.round(planner.getDemandLoad() * 100), divider);
+            } else {
+                logger.info("Bus {} is no longer overloaded", getThing().getUID());
+            }
+            lastDivider = divider;
+        }
+
+        updateState(CH_BUS_LOAD, new DecimalType(planner.getLoad() * 100));
     }
 
     @Override
@@ -149,7 +357,17 @@ public class SerialBusHandler extends BusHandler implements SerialPortEventListe
     }
 
     @Override
-    protected int getDelay() {
+    protected int getLowPriorityTimeout(byte command) {
+        // Enough to transfer the request and the reply, plus time for the meter to respond
+        return Math.min(config.read_timeout, (int) planner.getExchangeTime(command) + LOW_PRIORITY_MARGIN);
+    }
+
+    @Override
+    public int getDelay() {
+        if (replay != null && !config.replay_realtime) {
+            return 0; // Replay at maximum speed
+        }
+
         // According to the documentation, end of frame is considered when there's no
         // transmission within time, enough to transfer 5 - 6 bytes.
         // "+20" has been chosen experimentally, without this addendum i still got
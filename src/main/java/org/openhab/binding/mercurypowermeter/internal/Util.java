@@ -16,6 +16,8 @@ import org.eclipse.jdt.annotation.NonNullByDefault;
 
 @NonNullByDefault
 public class Util {
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
     private static int BCDToInt(int bcd, int nDigits) {
         int result = 0;
         int multiplier = 1;
@@ -36,4 +38,20 @@ public class Util {
     public static int BCDToInt(byte bcd) {
         return BCDToInt(Byte.toUnsignedInt(bcd), 2);
     }
+
+    public static String toHex(byte[] data, int offset, int length) {
+        char[] result = new char[length * 2];
+
+        for (int i = 0; i < length; i++) {
+            int v = Byte.toUnsignedInt(data[offset + i]);
+            result[i * 2] = HEX_DIGITS[v >> 4];
+            result[i * 2 + 1] = HEX_DIGITS[v & 0x0F];
+        }
+
+        return new String(result);
+    }
+
+    public static String toHex(byte[] data) {
+        return toHex(data, 0, data.length);
+    }
 }
@@ -0,0 +1,230 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.mercurypowermeter.internal.console;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.mercurypowermeter.internal.BridgeOfflineException;
+import org.openhab.binding.mercurypowermeter.internal.BusBenchmark;
+import org.openhab.binding.mercurypowermeter.internal.BusHandler;
+import org.openhab.binding.mercurypowermeter.internal.FrameTrace;
+import org.openhab.binding.mercurypowermeter.internal.Mercury200Handler;
+import org.openhab.binding.mercurypowermeter.internal.MercuryBindingConstants;
+import org.openhab.binding.mercurypowermeter.internal.Util;
+import org.openhab.core.io.console.Console;
+import org.openhab.core.io.console.extensions.AbstractConsoleCommandExtension;
+import org.openhab.core.io.console.extensions.ConsoleCommandExtension;
+import org.openhab.core.thing.Thing;
+import org.openhab.core.thing.ThingRegistry;
+import org.openhab.core.thing.ThingUID;
+import org.openhab.core.thing.binding.ThingHandler;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+
+/**
+ * The {@link MercuryCommandExtension} provides console commands for bus diagnostics
+ *
+ * @author Pavel Fedin - Initial contribution
+ */
+@NonNullByDefault
+@Component(service = ConsoleCommandExtension.class)
+public class MercuryCommandExtension extends AbstractConsoleCommandExtension {
+    private static final String TRACE = "trace";
+    private static final String ERRORS = "errors";
+    private static final String BENCH = "bench";
+    private static final String ALL = "all";
+    private static final int DEFAULT_BENCH_COUNT = 20;
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+
+    private final ThingRegistry thingRegistry;
+
+    @Activate
+    public MercuryCommandExtension(final @Reference ThingRegistry thingRegistry) {
+        super(MercuryBindingConstants.BINDING_ID, "Diagnose Mercury power meter serial bus.");
+        this.thingRegistry = thingRegistry;
+    }
+
+    @Override
+    public void execute(String[] args, Console console) {
+        if (args.length >= 2 && TRACE.equals(args[0])) {
+            trace(args, console);
+        } else if (args.length >= 3 && BENCH.equals(args[0])) {
+            bench(args, console);
+        } else {
+            printUsage(console);
+        }
+    }
+
+    @Override
+    public List<String> getUsages() {
+        return Arrays.asList(
+                buildCommandUsage(TRACE + " <bridgeUID> [<address>] [" + ERRORS + "]",
+                        "dump recent bus exchanges, optionally only for given meter address and/or only failed ones"),
+                buildCommandUsage(BENCH + " <bridgeUID> <address>|" + ALL + " [<count>] [<delay>,<delay>,...]",
+                        "measure bus throughput with given inter-frame delays in ms; polling is paused meanwhile"));
+    }
+
+    private void trace(String[] args, Console console) {
+        BusHandler bus = getBus(args[1], console);
+
+        if (bus == null) {
+            return;
+        }
+
+        Integer address = null;
+        boolean errorsOnly = false;
+
+        for (int i = 2; i < args.length; i++) {
+            if (ERRORS.equals(args[i])) {
+                errorsOnly = true;
+            } else {
+                try {
+                    address = Integer.valueOf(args[i]);
+                } catch (NumberFormatException e) {
+                    console.println("Invalid meter address: " + args[i]);
+                    return;
+                }
+            }
+        }
+
+        List<FrameTrace.Entry> entries = bus.getTrace().snapshot();
+        int shown = 0;
+
+        for (FrameTrace.Entry e : entries) {
+            if ((address != null && e.address != address)
+                    || (errorsOnly && (e.status == FrameTrace.Status.OK || e.status == FrameTrace.Status.RESYNC))) {
+                continue;
+            }
+
+            console.println(String.format("#%d %s %6.1fms %d cmd %02X %-7s len %d: %s", e.sequence,
+                    TIME_FORMAT.format(Instant.ofEpochMilli(e.timestamp)), e.duration / 1000000.0, e.address,
+                    Byte.toUnsignedInt(e.command), e.status, e.length, Util.toHex(e.data)));
+            shown++;
+        }
+
+        console.println(shown + " of " + entries.size() + " recorded exchanges shown");
+    }
+
+    private void bench(String[] args, Console console) {
+        BusHandler bus = getBus(args[1], console);
+
+        if (bus == null) {
+            return;
+        }
+
+        List<Integer> addresses = new ArrayList<>();
+        int count = DEFAULT_BENCH_COUNT;
+        List<Integer> delays = new ArrayList<>();
+
+        try {
+            if (ALL.equals(args[2])) {
+                for (Thing thing : bus.getThing().getThings()) {
+                    ThingHandler handler = thing.getHandler();
+
+                    if (handler instanceof Mercury200Handler) {
+                        addresses.add(((Mercury200Handler) handler).getAddress());
+                    }
+                }
+            } else {
+                addresses.add(Integer.valueOf(args[2]));
+            }
+            if (args.length > 3) {
+                count = Integer.parseInt(args[3]);
+            }
+            if (args.length > 4) {
+                for (String d : args[4].split(",")) {
+                    delays.add(Integer.valueOf(d));
+                }
+            }
+        } catch (NumberFormatException e) {
+            console.println("Invalid number: " + e.getMessage());
+            return;
+        }
+
+        if (count < 1) {
+            console.println("Count must be positive");
+            return;
+        }
+
+        if (addresses.isEmpty()) {
+            console.println("No meters on the bus");
+            return;
+        }
+
+        if (delays.isEmpty()) {
+            // Sweep from the current delay down to zero
+            int current = bus.getDelay();
+            delays = Arrays.asList(current, current * 3 / 4, current / 2, current / 4, 0);
+        }
+
+        console.println(String.format("Running %d exchanges per meter per delay on %d meter(s)...", count,
+                addresses.size()));
+
+        List<BusBenchmark.Result> results;
+
+        try {
+            results = bus.benchmark(addresses, count, delays);
+        } catch (IOException | BridgeOfflineException e) {
+            console.println("Bus is not available");
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            console.println("Interrupted");
+            return;
+        }
+
+        console.println(" delay  exch/s    p50ms    p90ms    p99ms  errors");
+        for (BusBenchmark.Result r : results) {
+            console.println(String.format("%6d %7.2f %8.1f %8.1f %8.1f  %d/%d (%.1f%%)", r.delay, r.rate,
+                    r.getPercentile(50) / 1000000.0, r.getPercentile(90) / 1000000.0, r.getPercentile(99) / 1000000.0,
+                    r.errors, r.exchanges, r.errors * 100.0 / r.exchanges));
+        }
+
+        int safe = BusBenchmark.getMinSafeDelay(results);
+        if (safe >= 0) {
+            console.println("Minimum safe inter-frame delay: " + safe + " ms (current: " + bus.getDelay() + " ms)");
+        } else {
+            console.println("Errors even at the largest delay tried; check wiring and addresses");
+        }
+    }
+
+    private @Nullable BusHandler getBus(String uid, Console console) {
+        Thing thing;
+
+        try {
+            thing = thingRegistry.get(new ThingUID(uid));
+        } catch (IllegalArgumentException e) {
+            thing = null; // Malformed UID
+        }
+
+        ThingHandler handler = thing != null ? thing.getHandler() : null;
+
+        if (handler instanceof BusHandler) {
+            return (BusHandler) handler;
+        }
+
+        console.println("No such bus: " + uid);
+        return null;
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.mercurypowermeter.internal.dto;
+
+import java.nio.ByteBuffer;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.mercurypowermeter.internal.dto.M200Protocol.Packet;
+
+/**
+ * Streaming parser for a reply frame. Bytes are fed one by one; the parser hunts for
+ * the expected address and command header, computes CRC on the fly and, if something
+ * doesn't match, drops leading bytes until the next possible start of the frame.
+ * This way stray bytes, echoes and late replies don't shift all the following frames.
+ *
+ * @author Pavel Fedin - Initial contribution
+ *
+ */
+@NonNullByDefault
+public class FrameParser {
+    private final byte[] header = new byte[Packet.HEADER_LENGTH];
+    private final byte[] buffer;
+    private int fill;
+    private int crc = M200Protocol.CRC16_INIT;
+
+    private int droppedBytes;
+    private int resyncs;
+    private int crcErrors;
+    private byte @Nullable [] badFrame;
+
+    /**
+     * @param address meter address, which the reply is expected from
+     * @param command command code, which the reply is expected for
+     * @param dataLength length of reply data, not including header and CRC
+     */
+    public FrameParser(int address, byte command, int dataLength) {
+        ByteBuffer.wrap(header).putInt(address).put(command);
+        buffer = new byte[dataLength + Packet.MIN_LENGTH];
+    }
+
+    /**
+     * Feed next received byte to the parser
+     *
+     * @return complete valid frame or null if more data is needed
+     */
+    public @Nullable Packet feed(byte b) {
+        buffer[fill++] = b;
+
+        if (fill <= header.length && b != header[fill - 1]) {
+            resync();
+            return null;
+        }
+
+        if (fill <= buffer.length - 2) {
+            crc = M200Protocol.crc16Update(crc, b);
+            return null;
+        }
+
+        if (fill < buffer.length) {
+            return null;
+        }
+
+        // CRC is transferred low byte first
+        if (buffer[fill - 2] == (byte) crc && buffer[fill - 1] == (byte) (crc >> 8)) {
+            Packet reply = new Packet(buffer.clone());
+
+            fill = 0;
+            crc = M200Protocol.CRC16_INIT;
+            return reply;
+        }
+
+        crcErrors++;
+        badFrame = buffer.clone();
+        resync();
+        return null;
+    }
+
+    // Drop bytes from the beginning of the buffer until the remaining data
+    // looks like a start of the expected frame again
+    private void resync() {
+        int skip = 1;
+
+        while (skip < fill && !matchesHeader(skip)) {
+            skip++;
+        }
+
+        fill -= skip;
+        System.arraycopy(buffer, skip, buffer, 0, fill);
+
+        droppedBytes += skip;
+        resyncs++;
+
+        crc = M200Protocol.CRC16_INIT;
+        for (int i = 0; i < Math.min(fill, buffer.length - 2); i++) {
+            crc = M200Protocol.crc16Update(crc, buffer[i]);
+        }
+    }
+
+    private boolean matchesHeader(int offset) {
+        int n = Math.min(fill - offset, header.length);
+
+        for (int i = 0; i < n; i++) {
+            if (buffer[offset + i] != header[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of bytes needed to complete the frame being currently parsed
+     */
+    public int getMissingLength() {
+        return buffer.length - fill;
+    }
+
+    /**
+     * @return true if some received bytes may still be a beginning of the expected frame
+     */
+    public boolean hasPartialFrame() {
+        return fill > 0;
+    }
+
+    public int getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    public int getResyncs() {
+        return resyncs;
+    }
+
+    public int getCrcErrors() {
+        return crcErrors;
+    }
+
+    /**
+     * @return last header-matching frame, which failed CRC check; null if none
+     */
+    public byte @Nullable [] getBadFrame() {
+        return badFrame;
+    }
+}
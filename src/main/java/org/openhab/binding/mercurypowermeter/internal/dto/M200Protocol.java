@@ -28,19 +28,59 @@ import org.openhab.binding.mercurypowermeter.internal.Util;
  */
 @NonNullByDefault
 public class M200Protocol {
+    public static final int CRC16_INIT = 0xFFFF;
+
     public static class Command {
         public static final byte READ_TIME = 0x21;
         public static final byte READ_POWER = 0x26;
         public static final byte READ_COUNTERS = 0x27;
         public static final byte READ_BATTERY = 0x29;
         public static final byte READ_TARIFFS = 0x2E;
+        public static final byte READ_MONTH_COUNTERS = 0x32;
         public static final byte READ_TARIFF = 0x60;
         public static final byte READ_UIP = 0x63;
         public static final byte READ_LINE_PARAMS = (byte) 0x81;
     }
 
+    // Length of reply data, not including header and CRC
+    public static int getReplyLength(byte command) {
+        switch (command) {
+            case Command.READ_TIME:
+                return 7;
+            case Command.READ_POWER:
+                return 4;
+            case Command.READ_COUNTERS:
+                return 16;
+            case Command.READ_BATTERY:
+                return 2;
+            case Command.READ_TARIFFS:
+                return 1;
+            case Command.READ_MONTH_COUNTERS:
+                return 16;
+            case Command.READ_TARIFF:
+                return 1;
+            case Command.READ_UIP:
+                return 7;
+            case Command.READ_LINE_PARAMS:
+                return 10;
+            default:
+                throw new IllegalStateException("Unknown command code");
+        }
+    }
+
+    // Mercury uses modbus variant of CRC16
+    // Code adapted from https://habr.com/ru/post/418209/
+    public static int crc16Update(int crc, byte data) {
+        crc = crc ^ Byte.toUnsignedInt(data);
+        for (int j = 0; j < 8; j++) {
+            int mask = ((crc & 0x1) != 0) ? 0xA001 : 0x0000;
+            crc = ((crc >> 1) & 0x7FFF) ^ mask;
+        }
+        return crc;
+    }
+
     public static class Packet {
-        private static final int HEADER_LENGTH = 5;
+        public static final int HEADER_LENGTH = 5;
         public static final int MIN_LENGTH = HEADER_LENGTH + 2;
 
         private ByteBuffer dataBuffer;
@@ -53,12 +93,17 @@ public class M200Protocol {
         }
 
         public Packet(int address, byte command) {
-            dataBuffer = ByteBuffer.allocate(MIN_LENGTH);
+            this(address, command, new byte[0]);
+        }
+
+        public Packet(int address, byte command, byte[] data) {
+            dataBuffer = ByteBuffer.allocate(MIN_LENGTH + data.length);
             dataBuffer.order(ByteOrder.BIG_ENDIAN);
-            dataLength = HEADER_LENGTH;
+            dataLength = HEADER_LENGTH + data.length;
 
             dataBuffer.putInt(address);
             dataBuffer.put(command);
+            dataBuffer.put(data);
             dataBuffer.putShort(crc16(dataLength));
         }
 
@@ -109,16 +154,10 @@ public class M200Protocol {
             return ZonedDateTime.of(yy, mon, dd, hh, mm, ss, 0, ZoneId.systemDefault());
         }
 
-        // Mercury uses modbus variant of CRC16
-        // Code adapted from https://habr.com/ru/post/418209/
         private short crc16(int length) {
-            int crc = 0xFFFF;
+            int crc = CRC16_INIT;
             for (int i = 0; i < length; i++) {
-                crc = crc ^ Byte.toUnsignedInt(dataBuffer.get(i));
-                for (int j = 0; j < 8; j++) {
-                    int mask = ((crc & 0x1) != 0) ? 0xA001 : 0x0000;
-                    crc = ((crc >> 1) & 0x7FFF) ^ mask;
-                }
+                crc = crc16Update(crc, dataBuffer.get(i));
             }
             // Our buffer is bigendian, but apparently CRC is little, make up for that
             return Short.reverseBytes((short) crc);
@@ -0,0 +1,81 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.mercurypowermeter.internal;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link BusBenchmark}
+ *
+ * @author Pavel Fedin - Initial contribution
+ */
+@NonNullByDefault
+public class BusBenchmarkTest {
+    private static BusBenchmark.Result result(int delay, int errors) {
+        return new BusBenchmark.Result(delay, 10, errors, 1.0, new long[0]);
+    }
+
+    @Test
+    public void testPercentile() {
+        long[] latencies = new long[100];
+
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = i + 1;
+        }
+
+        BusBenchmark.Result r = new BusBenchmark.Result(0, 100, 0, 1.0, latencies);
+
+        assertEquals(1, r.getPercentile(0));
+        assertEquals(50, r.getPercentile(50));
+        assertEquals(90, r.getPercentile(90));
+        assertEquals(99, r.getPercentile(99));
+        assertEquals(100, r.getPercentile(100));
+        assertEquals(0, result(0, 10).getPercentile(50));
+    }
+
+    @Test
+    public void testMinSafeDelay() {
+        // Order of results doesn't matter; an error at a larger delay makes smaller ones unsafe
+        assertEquals(50, BusBenchmark.getMinSafeDelay(Arrays.asList(result(25, 2), result(100, 0), result(50, 0))));
+        assertEquals(100, BusBenchmark.getMinSafeDelay(Arrays.asList(result(100, 0), result(50, 1), result(25, 0))));
+        assertEquals(-1, BusBenchmark.getMinSafeDelay(Arrays.asList(result(100, 1), result(0, 0))));
+        assertEquals(-1, BusBenchmark.getMinSafeDelay(Collections.emptyList()));
+    }
+
+    @Test
+    public void testRunAgainstFakeMeter() throws Exception {
+        FakeMeter meter = new FakeMeter(50);
+        List<BusBenchmark.Result> results = new BusBenchmark(meter, Arrays.asList(1, 2), 3)
+                .run(Arrays.asList(100, 60, 10, 0));
+
+        assertEquals(4, results.size());
+        assertEquals(4 * 2 * 3, meter.getRequests());
+        for (BusBenchmark.Result r : results) {
+            assertEquals(6, r.exchanges);
+            assertEquals(r.exchanges - r.errors, r.latencies.length);
+        }
+
+        assertEquals(0, results.get(0).errors);
+        assertEquals(0, results.get(1).errors);
+        assertTrue(results.get(2).errors > 0);
+        assertTrue(results.get(3).errors > 0);
+        assertEquals(60, BusBenchmark.getMinSafeDelay(results));
+    }
+}
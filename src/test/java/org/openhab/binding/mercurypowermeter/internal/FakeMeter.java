@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.mercurypowermeter.internal;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.mercurypowermeter.internal.dto.M200Protocol;
+import org.openhab.binding.mercurypowermeter.internal.dto.M200Protocol.Packet;
+
+/**
+ * The {@link FakeMeter} answers READ_POWER and READ_UIP requests with valid frames,
+ * but, like a real meter, doesn't reply if a request comes too soon after the previous one.
+ *
+ * @author Pavel Fedin - Initial contribution
+ */
+@NonNullByDefault
+public class FakeMeter implements BusBenchmark.Exchanger {
+    private final long minDelay;
+    private long lastExchange;
+    private int requests;
+
+    /**
+     * @param minDelay minimum delay between requests, which the meter can handle, milliseconds
+     */
+    public FakeMeter(int minDelay) {
+        this.minDelay = TimeUnit.MILLISECONDS.toNanos(minDelay);
+    }
+
+    @Override
+    public @Nullable Packet exchange(Packet pkt) throws IOException {
+        long now = System.nanoTime();
+        boolean tooSoon = requests++ > 0 && now - lastExchange < minDelay;
+
+        lastExchange = now;
+        if (tooSoon) {
+            throw new IOException("Serial read timeout");
+        }
+
+        byte command = pkt.getCommand();
+
+        if (command != M200Protocol.Command.READ_POWER && command != M200Protocol.Command.READ_UIP) {
+            throw new IOException("Serial read timeout");
+        }
+
+        return new Packet(pkt.getAddress(), command, new byte[M200Protocol.getReplyLength(command)]);
+    }
+
+    public int getRequests() {
+        return requests;
+    }
+}
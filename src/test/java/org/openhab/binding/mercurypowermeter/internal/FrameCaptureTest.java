@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.mercurypowermeter.internal;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link FrameCapture}
+ *
+ * @author Pavel Fedin - Initial contribution
+ */
+@NonNullByDefault
+public class FrameCaptureTest {
+    private static final LocalDateTime TIME = LocalDateTime.of(2020, 12, 31, 23, 59, 58);
+
+    @Test
+    public void testSessionFileName() {
+        assertEquals("bus-20201231-235958.mcap", FrameCapture.getSessionFileName("bus.mcap", TIME));
+        assertEquals("bus-20201231-235958", FrameCapture.getSessionFileName("bus", TIME));
+        assertEquals(".mcap-20201231-235958", FrameCapture.getSessionFileName(".mcap", TIME));
+        assertEquals(Paths.get("a.b", "bus-20201231-235958").toString(),
+                FrameCapture.getSessionFileName(Paths.get("a.b", "bus").toString(), TIME));
+    }
+
+    @Test
+    public void testSizeLimit() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] frame = new byte[10];
+
+        try (FrameCapture capture = new FrameCapture(out, "test", 100, "test.mcap")) {
+            for (int i = 0; i < 10; i++) {
+                capture.write(FrameCapture.REQUEST, 1, frame, frame.length);
+            }
+        }
+
+        assertTrue(out.size() <= 100);
+
+        int records = 0;
+        try (CaptureReader reader = new CaptureReader(new ByteArrayInputStream(out.toByteArray()))) {
+            while (reader.next() != null) {
+                records++;
+            }
+        }
+        // 20 bytes of header with a 4-character bridge ID, 25 bytes per record
+        assertEquals(3, records);
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.mercurypowermeter.internal;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.junit.jupiter.api.Test;
+import org.openhab.binding.mercurypowermeter.internal.dto.M200Protocol;
+import org.openhab.binding.mercurypowermeter.internal.dto.M200Protocol.Packet;
+
+/**
+ * Round-trips a capture through {@link FrameCapture}, {@link CaptureReader} and {@link ReplayTransport}
+ *
+ * @author Pavel Fedin - Initial contribution
+ */
+@NonNullByDefault
+public class ReplayTransportTest {
+    private static final Packet POWER_REQUEST = new Packet(1, M200Protocol.Command.READ_POWER);
+    private static final Packet POWER_REPLY = reply(1, M200Protocol.Command.READ_POWER, 0x11);
+    private static final Packet UIP_REQUEST = new Packet(2, M200Protocol.Command.READ_UIP);
+    private static final Packet UIP_REPLY = reply(2, M200Protocol.Command.READ_UIP, 0x22);
+    private static final Packet TIME_REQUEST = new Packet(1, M200Protocol.Command.READ_TIME);
+
+    private static Packet reply(int address, byte command, int fill) {
+        byte[] data = new byte[M200Protocol.getReplyLength(command)];
+
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (fill + i);
+        }
+        return new Packet(address, command, data);
+    }
+
+    private static void write(FrameCapture capture, byte direction, Packet pkt) throws IOException {
+        byte[] data = pkt.getBuffer();
+        capture.write(direction, pkt.getAddress(), data, data.length);
+    }
+
+    private static ReplayTransport replay() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (FrameCapture capture = new FrameCapture(out, "mercurypowermeter:serial_bus:test")) {
+            write(capture, FrameCapture.REQUEST, POWER_REQUEST);
+            write(capture, FrameCapture.REPLY, POWER_REPLY);
+            write(capture, FrameCapture.REQUEST, UIP_REQUEST);
+            write(capture, FrameCapture.REPLY, UIP_REPLY);
+            // Recorded timeout
+            write(capture, FrameCapture.REQUEST, TIME_REQUEST);
+        }
+
+        CaptureReader reader = new CaptureReader(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals("mercurypowermeter:serial_bus:test", reader.getBridgeId());
+        return new ReplayTransport(reader, false);
+    }
+
+    private static byte[] exchange(ReplayTransport transport, Packet request, int length) throws IOException {
+        transport.getOutputStream().write(request.getBuffer());
+
+        InputStream in = transport.getInputStream();
+        byte[] buffer = new byte[length];
+        int n = in.read(buffer, 0, length);
+
+        if (n <= 0) {
+            return new byte[0];
+        }
+        assertEquals(length, n);
+        return buffer;
+    }
+
+    private static void assertReply(Packet expected, byte[] actual) {
+        assertArrayEquals(expected.getBuffer(), actual);
+    }
+
+    @Test
+    public void testRecordedOrder() throws IOException {
+        try (ReplayTransport transport = replay()) {
+            assertReply(POWER_REPLY, exchange(transport, POWER_REQUEST, POWER_REPLY.getBuffer().length));
+            assertReply(UIP_REPLY, exchange(transport, UIP_REQUEST, UIP_REPLY.getBuffer().length));
+            assertEquals(0, exchange(transport, TIME_REQUEST, Packet.MIN_LENGTH).length);
+        }
+    }
+
+    @Test
+    public void testDifferentOrder() throws IOException {
+        try (ReplayTransport transport = replay()) {
+            assertReply(UIP_REPLY, exchange(transport, UIP_REQUEST, UIP_REPLY.getBuffer().length));
+            assertReply(POWER_REPLY, exchange(transport, POWER_REQUEST, POWER_REPLY.getBuffer().length));
+        }
+    }
+
+    @Test
+    public void testUnknownRequestTimesOut() throws IOException {
+        try (ReplayTransport transport = replay()) {
+            // Same command to a different meter isn't a match
+            assertEquals(0, exchange(transport, new Packet(3, M200Protocol.Command.READ_POWER), 16).length);
+            // Recorded exchanges, skipped while looking, are still available
+            assertReply(POWER_REPLY, exchange(transport, POWER_REQUEST, POWER_REPLY.getBuffer().length));
+        }
+    }
+
+    @Test
+    public void testEndOfCapture() throws IOException {
+        try (ReplayTransport transport = replay()) {
+            exchange(transport, POWER_REQUEST, POWER_REPLY.getBuffer().length);
+            exchange(transport, UIP_REQUEST, UIP_REPLY.getBuffer().length);
+            exchange(transport, TIME_REQUEST, Packet.MIN_LENGTH);
+
+            transport.getOutputStream().write(POWER_REQUEST.getBuffer());
+            assertEquals(-1, transport.getInputStream().read(new byte[16], 0, 16));
+        }
+    }
+}
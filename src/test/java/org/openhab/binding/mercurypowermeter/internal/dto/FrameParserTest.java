@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.mercurypowermeter.internal.dto;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.junit.jupiter.api.Test;
+import org.openhab.binding.mercurypowermeter.internal.dto.M200Protocol.Packet;
+
+/**
+ * Tests for {@link FrameParser}
+ *
+ * @author Pavel Fedin - Initial contribution
+ */
+@NonNullByDefault
+public class FrameParserTest {
+    private static final int ADDRESS = 0x11223344;
+    private static final byte COMMAND = M200Protocol.Command.READ_UIP;
+    private static final byte[] REPLY = new Packet(ADDRESS, COMMAND,
+            new byte[] { 0x22, 0x05, 0x00, 0x01, 0x23, 0x00, 0x04 }).getBuffer();
+
+    private final FrameParser parser = new FrameParser(ADDRESS, COMMAND, M200Protocol.getReplyLength(COMMAND));
+
+    private @Nullable Packet feed(byte[] data) {
+        Packet reply = null;
+
+        for (byte b : data) {
+            Packet p = parser.feed(b);
+            if (p != null) {
+                assertNull(reply); // Only one frame is expected
+                reply = p;
+            }
+        }
+        return reply;
+    }
+
+    private static void assertReply(@Nullable Packet reply) {
+        assertNotNull(reply);
+        assertArrayEquals(REPLY, reply.getBuffer());
+    }
+
+    @Test
+    public void testCleanReply() {
+        assertReply(feed(REPLY));
+        assertEquals(0, parser.getDroppedBytes());
+        assertEquals(0, parser.getCrcErrors());
+        assertFalse(parser.hasPartialFrame());
+    }
+
+    @Test
+    public void testLeadingGarbage() {
+        assertNull(feed(new byte[] { (byte) 0xAA, 0x55, 0x11, 0x22, 0x00 }));
+        assertReply(feed(REPLY));
+        assertEquals(5, parser.getDroppedBytes());
+        assertEquals(0, parser.getCrcErrors());
+    }
+
+    @Test
+    public void testEchoedRequest() {
+        // Half-duplex adapters may echo our own request back, its header matches the expected one
+        assertNull(feed(new Packet(ADDRESS, COMMAND).getBuffer()));
+        assertTrue(parser.hasPartialFrame());
+
+        // The echo and the beginning of the reply together fail CRC check,
+        // but the reply header is still waiting in the buffer
+        assertNull(feed(Arrays.copyOf(REPLY, Packet.MIN_LENGTH)));
+        assertEquals(1, parser.getCrcErrors());
+        assertTrue(parser.hasPartialFrame());
+
+        assertReply(feed(Arrays.copyOfRange(REPLY, Packet.MIN_LENGTH, REPLY.length)));
+        assertEquals(Packet.MIN_LENGTH, parser.getDroppedBytes());
+    }
+
+    @Test
+    public void testLateReply() {
+        // Late replies from a previous exchange: another command and another meter
+        assertNull(feed(new Packet(ADDRESS, M200Protocol.Command.READ_POWER, new byte[] { 0, 0, 0x12, 0x34 })
+                .getBuffer()));
+        assertNull(feed(new Packet(0x11223355, COMMAND, new byte[7]).getBuffer()));
+        assertReply(feed(REPLY));
+        assertEquals(0, parser.getCrcErrors());
+        assertEquals(11 + 14, parser.getDroppedBytes());
+    }
+
+    @Test
+    public void testBadCrc() {
+        byte[] bad = REPLY.clone();
+
+        bad[bad.length - 1] ^= 0x01;
+        assertNull(feed(bad));
+        assertEquals(1, parser.getCrcErrors());
+        assertArrayEquals(bad, parser.getBadFrame());
+        assertFalse(parser.hasPartialFrame());
+    }
+}